@@ -0,0 +1,83 @@
+/**
+ * File: LoopbackBenchmark.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: The whole command path: a command added to the connection handler until it's read by a
+ *       signal connected over loopback. Sample time mode reports the p50/p99/p99.9 latencies.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    /** The ID of the simulated signal. */
+    private static final String SIGNAL_ID = "loopback";
+
+    private TrainSignalConnectionHandler mHandler;
+    private LoopbackSignal mSignal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        mHandler = new TrainSignalConnectionHandler(port);
+        // The loopback signal doesn't physically change, so don't wait for it to.
+        mHandler.setActuationMs(0);
+
+        // Give the handler a moment to bind before connecting.
+        for (int i = 0; i < 100 && mSignal == null; i++) {
+            try {
+                mSignal = new LoopbackSignal(port, SIGNAL_ID);
+            } catch (IOException ex) {
+                Thread.sleep(50);
+            }
+        }
+        while (!mHandler.isSignalConnected(SIGNAL_ID)) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mHandler.killServer();
+        mSignal.close();
+        System.out.println("\nEnqueue to write: " + mHandler.getEnqueueToWriteLatency());
+    }
+
+    @Benchmark
+    public long commandRoundTrip() {
+        long target = mSignal.getReceived() + 1;
+        mHandler.addMessage(SIGNAL_ID, SignalAspect.GREEN_ON);
+        long received;
+        while ((received = mSignal.getReceived()) < target) {
+            Thread.onSpinWait();
+        }
+        return received;
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * File: LoopbackSignal.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: A minimal signal for benchmarks. It connects to the handler over loopback, identifies
+ *       itself and acks every message immediately, counting what it receives.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+class LoopbackSignal extends Thread {
+    /** The socket connected to the handler. */
+    private final Socket mSocket;
+
+    /** The number of messages received. */
+    private final AtomicLong mReceived;
+
+    /**
+     * @param port The port the handler is listening on.
+     * @param signalId The ID to identify as.
+     */
+    LoopbackSignal(int port, String signalId) throws IOException {
+        super("LoopbackSignal-" + signalId);
+        setDaemon(true);
+        mReceived = new AtomicLong();
+        mSocket = new Socket("localhost", port);
+        mSocket.setTcpNoDelay(true);
+        mSocket.getOutputStream().write(("[" + signalId + "]!").getBytes(StandardCharsets.US_ASCII));
+        start();
+    }
+
+    /** @return The number of messages received. */
+    long getReceived() {
+        return mReceived.get();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[256];
+        try {
+            InputStream in = mSocket.getInputStream();
+            OutputStream out = mSocket.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                int acks = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == TrainSignalMessage.MESSAGE_TERMINATING_CHAR) acks++;
+                }
+                for (int i = 0; i < acks; i++) {
+                    out.write(TrainSignalMessage.ACK_MESSAGE);
+                }
+                out.flush();
+                mReceived.addAndGet(acks);
+            }
+        } catch (IOException ex) {
+            // The benchmark is over.
+        }
+    }
+
+    /** Disconnect from the handler. */
+    void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * File: SignalAspectBenchmark.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Compares building the message and API response for a command per request (the way the
+ *       API used to) with looking up the precomputed SignalAspect. Run with "-prof gc" to see the
+ *       allocation per request:
+ *           ant bench -Dbench.args="-prof gc SignalAspectBenchmark"
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zone.mattjones.trainsignal.TrainSignalMessage.LampState;
+import zone.mattjones.trainsignal.TrainSignalMessage.SignalColor;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignalAspectBenchmark {
+    /** The aspect requested. */
+    @Param({"GREEN_ON", "RED_BLINK"})
+    public SignalAspect aspect;
+
+    /** The parsed request parameters. */
+    private SignalColor mColor;
+    private LampState mLampState;
+
+    @Setup
+    public void setUp() {
+        mColor = aspect.getColor();
+        mLampState = aspect.getLampState();
+    }
+
+    /** The request path before precomputed aspects: a new message and response per request. */
+    @Benchmark
+    public byte[] generatePerRequest() {
+        byte[] signalMessage = TrainSignalMessage.generateMessage(mColor, mLampState);
+        String messageString = new String(signalMessage);
+        return ("{\"error\":" + false + ",\"currentState\":\"" + messageString + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** The request path with precomputed aspects. */
+    @Benchmark
+    public byte[] precomputedAspect() {
+        return SignalAspect.of(mColor, mLampState).getResponse(true);
+    }
+}
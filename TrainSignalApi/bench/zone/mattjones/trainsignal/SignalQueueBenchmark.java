@@ -0,0 +1,57 @@
+/**
+ * File: SignalQueueBenchmark.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Adding a command to a connected signal's queue and draining it the way the connection
+ *       handler's thread does, and collapsing a burst of commands down to the latest one.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignalQueueBenchmark {
+    /** The aspects sent in each burst. */
+    private static final SignalAspect[] ASPECTS = SignalAspect.values();
+
+    /** A session that looks connected so commands go through the normal queueing path. */
+    private SignalSession mSession;
+
+    @Setup
+    public void setUp() {
+        mSession = new SignalSession("bench");
+        mSession.setConnection(new SignalConnection(null, null, 1));
+    }
+
+    @Benchmark
+    public SignalCommand addAndPoll() {
+        mSession.addMessage(new SignalCommand(SignalAspect.GREEN_ON.getMessage()));
+        return mSession.pollMessage(true);
+    }
+
+    /** A burst of commands (e.g. someone mashing buttons) while the signal is busy. */
+    @Benchmark
+    public SignalCommand coalesceBurst() {
+        for (SignalAspect aspect : ASPECTS) {
+            mSession.addMessage(new SignalCommand(aspect.getMessage()));
+        }
+        return mSession.pollMessage(true);
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * File: TrainSignalApiBenchmark.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Parsing the API's query params into the aspect to send.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TrainSignalApiBenchmark {
+    /** The value of the color param. */
+    @Param({"g", "yellow"})
+    public String color;
+
+    /** The value of the lamp param. */
+    @Param({"1", "b"})
+    public String lamp;
+
+    @Benchmark
+    public SignalAspect parseParams() {
+        return SignalAspect.of(TrainSignalApi.parseColor(color),
+                TrainSignalApi.parseLampState(lamp));
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * File: TrainSignalMessageBenchmark.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Encoding and decoding of legacy messages and version 1 frames.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import zone.mattjones.trainsignal.TrainSignalMessage.LampState;
+import zone.mattjones.trainsignal.TrainSignalMessage.MessageType;
+import zone.mattjones.trainsignal.TrainSignalMessage.SignalColor;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TrainSignalMessageBenchmark {
+    /** A channel that returns the same bytes on every read, like a chatty signal. */
+    private static class RepeatingChannel implements ReadableByteChannel {
+        private final byte[] mBytes;
+
+        RepeatingChannel(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int length = Math.min(dst.remaining(), mBytes.length);
+            dst.put(mBytes, 0, length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    /** The ID written into version 1 frames. */
+    private byte[] mSignalId;
+
+    /** The buffer frames are encoded into. */
+    private ByteBuffer mOut;
+
+    /** Decoders and channels feeding them a legacy ack or a version 1 ack on every read. */
+    private SignalFrameDecoder mLegacyDecoder;
+    private SignalFrameDecoder mFrameDecoder;
+    private RepeatingChannel mLegacyAcks;
+    private RepeatingChannel mFrameAcks;
+
+    @Setup
+    public void setUp() {
+        mSignalId = "north".getBytes();
+        mOut = ByteBuffer.allocate(TrainSignalMessage.MAX_FRAME_SIZE);
+        mLegacyDecoder = new SignalFrameDecoder();
+        mFrameDecoder = new SignalFrameDecoder();
+        mLegacyAcks = new RepeatingChannel(TrainSignalMessage.ACK_MESSAGE);
+        mFrameAcks = new RepeatingChannel(
+                TrainSignalMessage.generateFrame(MessageType.ACK, 42, "north", null));
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() {
+        return TrainSignalMessage.generateMessage(SignalColor.YELLOW, LampState.BLINK);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        mOut.clear();
+        TrainSignalMessage.writeFrame(mOut, MessageType.COMMAND, 42, mSignalId,
+                SignalAspect.YELLOW_BLINK.getMessage(), 0, 1);
+        return mOut;
+    }
+
+    @Benchmark
+    public void decodeLegacyAck(Blackhole blackhole) throws IOException {
+        mLegacyDecoder.read(mLegacyAcks);
+        while (mLegacyDecoder.nextMessage()) {
+            blackhole.consume(mLegacyDecoder.isAckMessage());
+        }
+    }
+
+    @Benchmark
+    public void decodeFrameAck(Blackhole blackhole) throws IOException {
+        mFrameDecoder.read(mFrameAcks);
+        while (mFrameDecoder.nextMessage()) {
+            blackhole.consume(mFrameDecoder.isAckMessage());
+            blackhole.consume(mFrameDecoder.getSequence());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * File: ActuationScheduler.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Decides when each signal can be sent its next state command. A signal spends a couple
+ *       of seconds physically changing after it acks a command and won't read anything else
+ *       until it's done, so a command written during that time just sits in the signal's socket
+ *       buffer. Holding it here instead means newer commands still replace it, and the server
+ *       can say when the signal will actually show it.
+ *
+ *       Each signal is busy for its actuation time after an ack; the time starts at 2.5 seconds
+ *       and follows what the signal reports in STATUS frames. Changes can also be staggered so
+ *       that only one signal starts changing per stagger interval, e.g. so a route being set
+ *       doesn't have every signal's relay and lamps draw from a shared supply at once. Signals
+ *       that have to wait are released in the order they become ready by a single thread.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+class ActuationScheduler implements Runnable {
+    /** The time a signal is assumed to take to change until it reports otherwise in ms. */
+    static final long DEFAULT_ACTUATION_MS = 2500;
+
+    /** The signal isn't waiting on the scheduler. */
+    static final int IDLE = 0;
+
+    /** The signal is waiting for its turn. */
+    static final int QUEUED = 1;
+
+    /** The signal's turn has come and its next flush can write a command. */
+    static final int GRANTED = 2;
+
+    /** A signal waiting for its turn. */
+    private static final class Waiting implements Comparable<Waiting> {
+        /** The signal's session. */
+        final SignalSession mSession;
+
+        /** The time (ms) the signal is done with its last change. */
+        final long mReadyMs;
+
+        /** The order the signal started waiting in, to break ties. */
+        final long mOrder;
+
+        /**
+         * @param session The signal's session.
+         * @param readyMs The time (ms) the signal is done with its last change.
+         * @param order The order the signal started waiting in.
+         */
+        Waiting(SignalSession session, long readyMs, long order) {
+            mSession = session;
+            mReadyMs = readyMs;
+            mOrder = order;
+        }
+
+        @Override
+        public int compareTo(Waiting other) {
+            if (mReadyMs != other.mReadyMs) return Long.compare(mReadyMs, other.mReadyMs);
+            return Long.compare(mOrder, other.mOrder);
+        }
+    }
+
+    /** Asks a session's connection to flush once its turn comes. */
+    private final Consumer<SignalSession> mFlusher;
+
+    /** Signals waiting for their turn, soonest first. Also guards the fields below it. */
+    private final PriorityQueue<Waiting> mQueue;
+
+    /** The thread releasing waiting signals. */
+    private final Thread mThread;
+
+    /** The time (ms) the last signal was released to start changing, when staggering. */
+    private long mLastStartMs;
+
+    /** The number of signals that have started waiting, for ordering ties. */
+    private long mOrder;
+
+    /** The least time between two signals starting to change in ms, or 0 to not stagger. */
+    private volatile long mStaggerMs;
+
+    /** Whether the scheduler has been stopped. */
+    private volatile boolean mStopped;
+
+    /** @param flusher Asks a session's connection to flush once its turn comes. */
+    ActuationScheduler(Consumer<SignalSession> flusher) {
+        mFlusher = flusher;
+        mQueue = new PriorityQueue<>();
+        mThread = new Thread(this, "ActuationScheduler");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** @return The least time between two signals starting to change in ms. */
+    long getStaggerMs() {
+        return mStaggerMs;
+    }
+
+    /** @param staggerMs The least time between two signals starting to change in ms. */
+    void setStaggerMs(long staggerMs) {
+        mStaggerMs = Math.max(0, staggerMs);
+    }
+
+    /**
+     * Check whether a signal with a command waiting can be sent it now. If not, the signal
+     * waits for its turn and its session is flushed again when it comes. Called by the owner
+     * of the session's connection.
+     * @param session The signal's session.
+     * @param nowMs The current time in ms.
+     * @return Whether the command can be written now.
+     */
+    boolean tryStart(SignalSession session, long nowMs) {
+        if (session.compareAndSetActuationState(GRANTED, IDLE)) return true;
+        if (session.getActuationState() != IDLE) return false;
+
+        long readyMs = session.getBusyUntilMs();
+        long staggerMs = mStaggerMs;
+        if (staggerMs == 0 && nowMs >= readyMs) {
+            session.setReleasedNanos(System.nanoTime());
+            return true;
+        }
+
+        synchronized (mQueue) {
+            if (nowMs >= readyMs && mQueue.isEmpty() && nowMs >= mLastStartMs + staggerMs) {
+                mLastStartMs = nowMs;
+                session.setReleasedNanos(System.nanoTime());
+                return true;
+            }
+            session.compareAndSetActuationState(IDLE, QUEUED);
+            mQueue.add(new Waiting(session, readyMs, mOrder++));
+            mQueue.notify();
+        }
+        return false;
+    }
+
+    /**
+     * Estimate how long a command queued for a signal now would take to show.
+     * @param session The signal's session.
+     * @param nowMs The current time in ms.
+     * @return The estimate in ms or -1 if the signal isn't connected.
+     */
+    long estimateTimeToDisplayMs(SignalSession session, long nowMs) {
+        SignalConnection connection = session.getConnection();
+        if (connection == null) return -1;
+
+        long writeToAckMs = connection.getSmoothedRttMs();
+        long actuationMs = session.getActuationMs();
+        long startMs = Math.max(nowMs, session.getBusyUntilMs());
+        // A command the signal hasn't acked yet has to finish changing first.
+        if (connection.hasCommandInFlight()) {
+            startMs = Math.max(startMs, nowMs + writeToAckMs + actuationMs);
+        }
+        long staggerMs = mStaggerMs;
+        if (staggerMs > 0) {
+            synchronized (mQueue) {
+                startMs = Math.max(startMs, mLastStartMs + staggerMs * (mQueue.size() + 1));
+            }
+        }
+        return startMs + writeToAckMs + actuationMs - nowMs;
+    }
+
+    /** @return The number of signals waiting for their turn. */
+    int getWaitingCount() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    /** Stop the scheduler's thread. Signals still waiting are left waiting. */
+    void stop() {
+        mStopped = true;
+        synchronized (mQueue) {
+            mQueue.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        synchronized (mQueue) {
+            while (!mStopped) {
+                Waiting next = mQueue.peek();
+                long nowMs = System.currentTimeMillis();
+                long startMs = next == null ? 0
+                        : Math.max(next.mReadyMs, mLastStartMs + mStaggerMs);
+                try {
+                    if (next == null) {
+                        mQueue.wait();
+                        continue;
+                    } else if (startMs > nowMs) {
+                        mQueue.wait(startMs - nowMs);
+                        continue;
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                mQueue.poll();
+                mLastStartMs = nowMs;
+                next.mSession.setReleasedNanos(System.nanoTime());
+                next.mSession.compareAndSetActuationState(QUEUED, GRANTED);
+                mFlusher.accept(next.mSession);
+            }
+        }
+    }
+}
@@ -1,28 +1,112 @@
 /*
  * Copyright 2022 Matt Jones
  * Date: 2023.11.20
- * Desc: Allow access to the API from other domains (also useful for local dev).
+ * Desc: Allow access to the API from other domains (also useful for local dev). Preflights are
+ *       answered here without reaching a servlet, and carry a Max-Age so a browser only sends
+ *       one per origin and URL every so often rather than one before each command. Every header
+ *       value is built once at startup.
+ *
+ *       The allowedOrigins init param is "*" for any origin or a comma separated list of origins
+ *       (e.g. "http://192.168.1.20:8080,http://signals.local"). Requests from other origins are
+ *       still served, but without the headers a browser needs to let a page read the response.
  */
 
 package zone.mattjones.trainsignal;
 
-        import jakarta.servlet.FilterChain;
-        import jakarta.servlet.ServletException;
-        import jakarta.servlet.annotation.WebFilter;
-        import jakarta.servlet.http.HttpFilter;
-        import jakarta.servlet.http.HttpServletRequest;
-        import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
-        import java.io.IOException;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.annotation.WebInitParam;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
-@WebFilter(urlPatterns = "/*", filterName = "CorsFilter")
+@WebFilter(urlPatterns = "/*", filterName = "CorsFilter", asyncSupported = true,
+        initParams = {
+                @WebInitParam(name = "allowedOrigins", value = "*"),
+                @WebInitParam(name = "maxAgeSeconds", value = "600")})
 public class CorsFilter extends HttpFilter {
+    private static final long serialVersionUID = 20261016L;
+
+    /** The init param listing the origins allowed to use the API, or "*" for any. */
+    private static final String ALLOWED_ORIGINS_PARAM = "allowedOrigins";
+
+    /** The init param for how long a browser can cache a preflight in seconds. */
+    private static final String MAX_AGE_PARAM = "maxAgeSeconds";
+
+    /** The default time a browser can cache a preflight in seconds. */
+    private static final int DEFAULT_MAX_AGE_SECONDS = 600;
+
+    /** The value of the allowed origins param that allows any origin. */
+    private static final String ANY_ORIGIN = "*";
+
+    /** The methods the API uses. */
+    private static final String ALLOWED_METHODS = "GET, POST, DELETE";
+
+    /** The request headers the API reads that a browser doesn't allow by default. */
+    private static final String ALLOWED_HEADERS = "Content-Type, If-None-Match";
+
+    /** The response headers a page may read that a browser hides by default. */
+    private static final String EXPOSED_HEADERS =
+            "ETag, Retry-After, " + TrainSignalApi.TIME_TO_DISPLAY_HEADER;
+
+    /** The origins allowed to use the API or null if any origin is. */
+    private Set<String> mAllowedOrigins;
+
+    /** The Access-Control-Max-Age value for preflights. */
+    private String mMaxAge;
+
+    @Override
+    public void init() throws ServletException {
+        String origins = getInitParameter(ALLOWED_ORIGINS_PARAM);
+        if (origins == null || ANY_ORIGIN.equals(origins.trim())) {
+            mAllowedOrigins = null;
+        } else {
+            mAllowedOrigins = new HashSet<>();
+            for (String origin : origins.split(",")) {
+                // Browsers never send a trailing slash, so an origin copied from the address bar
+                // still matches.
+                origin = origin.trim();
+                if (origin.endsWith("/")) origin = origin.substring(0, origin.length() - 1);
+                if (!origin.isEmpty()) mAllowedOrigins.add(origin);
+            }
+        }
+        mMaxAge = Integer.toString(TrainSignalApi.parseIntParameter(MAX_AGE_PARAM,
+                getInitParameter(MAX_AGE_PARAM), DEFAULT_MAX_AGE_SECONDS));
+    }
+
     @Override
     public void doFilter(HttpServletRequest req, HttpServletResponse res,
             FilterChain chain) throws IOException, ServletException {
-        res.setHeader("Access-Control-Allow-Origin", "*");
-        res.setHeader("Access-Control-Allow-Methods", "GET");
+        String origin = req.getHeader("Origin");
+        boolean allowed = origin != null
+                && (mAllowedOrigins == null || mAllowedOrigins.contains(origin));
+        // The response depends on the origin when only some are allowed, so caches must too.
+        if (origin != null && mAllowedOrigins != null) res.setHeader("Vary", "Origin");
+        if (allowed) {
+            res.setHeader("Access-Control-Allow-Origin",
+                    mAllowedOrigins == null ? ANY_ORIGIN : origin);
+        }
+
+        boolean preflight = "OPTIONS".equals(req.getMethod()) && origin != null
+                && req.getHeader("Access-Control-Request-Method") != null;
+        if (!preflight) {
+            if (allowed) res.setHeader("Access-Control-Expose-Headers", EXPOSED_HEADERS);
+            super.doFilter(req, res, chain);
+            return;
+        }
 
-        super.doFilter(req, res, chain);
+        if (!allowed) {
+            res.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        res.setHeader("Access-Control-Allow-Methods", ALLOWED_METHODS);
+        res.setHeader("Access-Control-Allow-Headers", ALLOWED_HEADERS);
+        res.setHeader("Access-Control-Max-Age", mMaxAge);
+        res.setStatus(HttpServletResponse.SC_NO_CONTENT);
     }
 }
@@ -0,0 +1,146 @@
+/**
+ * File: FileSignalRegistry.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: A signal registry kept in a directory every node can reach, e.g. a local directory for
+ *       several nodes on one machine or a shared mount. Each connected signal has a file named
+ *       after it holding the owning node's address. Files are replaced with an atomic move, so
+ *       a reader never sees half an address. Releasing moves the file aside before checking who
+ *       it names, so a node can't delete a claim another node made after it last looked.
+ *
+ *       Lookups are cached briefly since they happen on every forwarded command. A node that
+ *       acts on a stale owner just queues the command where the signal used to be; it reaches
+ *       the signal if it comes back there.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+class FileSignalRegistry implements SignalRegistry {
+    /** How long a looked up owner is trusted before the file is read again in ms. */
+    private static final long CACHE_TTL_MS = 1000;
+
+    /** The extension of the file recording a signal's owner. */
+    private static final String OWNER_EXTENSION = ".owner";
+
+    /** The extension of an owner file moved aside while it's being released. */
+    private static final String RELEASED_EXTENSION = ".released";
+
+    /** A looked up owner and when it was read. */
+    private static final class CachedOwner {
+        /** The owning node or null if no node owned the signal. */
+        final String mNode;
+
+        /** The time (ms) the owner was read. */
+        final long mReadMs;
+
+        /**
+         * @param node The owning node or null if no node owned the signal.
+         * @param readMs The time (ms) the owner was read.
+         */
+        CachedOwner(String node, long readMs) {
+            mNode = node;
+            mReadMs = readMs;
+        }
+    }
+
+    /** The directory holding the owner files. */
+    private final Path mDirectory;
+
+    /** Recently looked up owners, keyed by signal ID. */
+    private final ConcurrentHashMap<String, CachedOwner> mCache;
+
+    /**
+     * @param directory The directory holding the owner files. Created if it doesn't exist.
+     * @throws IOException
+     */
+    FileSignalRegistry(Path directory) throws IOException {
+        mDirectory = Files.createDirectories(directory);
+        mCache = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void claim(String signalId, String node) throws IOException {
+        Path temp = Files.createTempFile(mDirectory, signalId, ".tmp");
+        try {
+            Files.write(temp, node.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, ownerFile(signalId), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        mCache.put(signalId, new CachedOwner(node, System.currentTimeMillis()));
+    }
+
+    @Override
+    public void release(String signalId, String node) throws IOException {
+        mCache.remove(signalId);
+        if (!node.equals(readOwner(signalId))) return;
+
+        // The signal may claim another node between reading the file and deleting it, so take
+        // the file out of the way atomically first and only then check it's still this node's.
+        Path owner = ownerFile(signalId);
+        Path released = mDirectory.resolve(signalId + "." + UUID.randomUUID()
+                + RELEASED_EXTENSION);
+        try {
+            Files.move(owner, released, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException ex) {
+            return;
+        }
+        try {
+            String releasedNode =
+                    new String(Files.readAllBytes(released), StandardCharsets.UTF_8);
+            if (node.equals(releasedNode)) return;
+            // Put the other node's claim back. Linking fails rather than replacing if that node
+            // (or another) has claimed the signal again since, and the newer claim wins.
+            try {
+                Files.createLink(owner, released);
+            } catch (FileAlreadyExistsException ex) {
+                // Already replaced by a newer claim.
+            }
+        } finally {
+            Files.deleteIfExists(released);
+        }
+    }
+
+    @Override
+    public String getOwner(String signalId) throws IOException {
+        long nowMs = System.currentTimeMillis();
+        CachedOwner cached = mCache.get(signalId);
+        if (cached != null && nowMs - cached.mReadMs < CACHE_TTL_MS) return cached.mNode;
+
+        String node = readOwner(signalId);
+        mCache.put(signalId, new CachedOwner(node, nowMs));
+        return node;
+    }
+
+    /**
+     * @param signalId The ID of a signal.
+     * @return The node named in the signal's owner file or null if there isn't one.
+     * @throws IOException
+     */
+    private String readOwner(String signalId) throws IOException {
+        try {
+            return new String(Files.readAllBytes(ownerFile(signalId)), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @param signalId The ID of a signal. Signal IDs are validated, so they're safe file names.
+     * @return The file recording the signal's owner.
+     */
+    private Path ownerFile(String signalId) {
+        return mDirectory.resolve(signalId + OWNER_EXTENSION);
+    }
+}
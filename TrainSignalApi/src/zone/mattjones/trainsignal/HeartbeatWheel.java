@@ -0,0 +1,171 @@
+/**
+ * File: HeartbeatWheel.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: A hashed wheel timer that checks on every connected signal from a single thread. Each
+ *       connection has one timeout in the wheel at a time; when it comes due the server decides
+ *       whether the signal needs a heartbeat and when to look at it next. Scheduling is O(1)
+ *       and each tick only touches the connections that hash to its slot, so thousands of
+ *       signals cost about the same as a handful.
+ *
+ *       Timeouts fire up to one tick late, which is fine for heartbeats measured in seconds.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+class HeartbeatWheel implements Runnable {
+    /** The resolution of the wheel in ms. */
+    static final long TICK_MS = 100;
+
+    /** The number of slots in the wheel. Must be a power of two. */
+    private static final int WHEEL_SIZE = 512;
+
+    /** Decides what to do when a connection's timeout comes due. */
+    interface Handler {
+        /**
+         * @param connection The connection whose timeout came due.
+         * @param nowMs The current time in ms.
+         * @return The time (ms) to check the connection again or 0 to stop checking it.
+         */
+        long onTimeout(SignalConnection connection, long nowMs);
+    }
+
+    /** A connection waiting in the wheel. */
+    private static final class Timeout {
+        /** The connection to check. */
+        final SignalConnection mConnection;
+
+        /** The time (ms) the timeout is due. */
+        long mDeadlineMs;
+
+        /** The next timeout in the same slot. */
+        Timeout mNext;
+
+        /**
+         * @param connection The connection to check.
+         * @param deadlineMs The time (ms) the timeout is due.
+         */
+        Timeout(SignalConnection connection, long deadlineMs) {
+            mConnection = connection;
+            mDeadlineMs = deadlineMs;
+        }
+    }
+
+    /** Decides what to do when a timeout comes due. */
+    private final Handler mHandler;
+
+    /** The first timeout in each slot. Only used by mThread. */
+    private final Timeout[] mSlots;
+
+    /** Timeouts scheduled by other threads that haven't been put in a slot yet. */
+    private final ConcurrentLinkedQueue<Timeout> mPending;
+
+    /** The thread running the wheel. */
+    private final Thread mThread;
+
+    /** The next tick (ms / TICK_MS) to process. Only used by mThread. */
+    private long mTick;
+
+    /** Whether the wheel has been stopped. */
+    private volatile boolean mStopped;
+
+    /** @param handler Decides what to do when a timeout comes due. */
+    HeartbeatWheel(Handler handler) {
+        mHandler = handler;
+        mSlots = new Timeout[WHEEL_SIZE];
+        mPending = new ConcurrentLinkedQueue<>();
+        mThread = new Thread(this, "HeartbeatWheel");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Start checking on a connection. It's picked up on the next tick.
+     * @param connection The connection.
+     * @param deadlineMs The time (ms) to first check it.
+     */
+    void schedule(SignalConnection connection, long deadlineMs) {
+        mPending.add(new Timeout(connection, deadlineMs));
+    }
+
+    /** Stop the wheel's thread. */
+    void stop() {
+        mStopped = true;
+        LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void run() {
+        mTick = System.currentTimeMillis() / TICK_MS;
+        List<Timeout> rescheduled = new ArrayList<>();
+        while (!mStopped) {
+            long nowMs = System.currentTimeMillis();
+            Timeout timeout;
+            while ((timeout = mPending.poll()) != null) {
+                place(timeout);
+            }
+
+            long currentTick = nowMs / TICK_MS;
+            while (mTick <= currentTick) {
+                expire(mTick, nowMs, rescheduled);
+                mTick++;
+            }
+            // Put these back only once the slots are processed so a timeout rescheduled into
+            // the current slot doesn't fire twice in one tick.
+            for (Timeout t : rescheduled) {
+                place(t);
+            }
+            rescheduled.clear();
+
+            long waitMs = mTick * TICK_MS - System.currentTimeMillis();
+            if (waitMs > 0) LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMs));
+        }
+    }
+
+    /**
+     * Run every timeout in a tick's slot that is due.
+     * @param tick The tick to process.
+     * @param nowMs The current time in ms.
+     * @param rescheduled Where to put timeouts that need to go back in the wheel.
+     */
+    private void expire(long tick, long nowMs, List<Timeout> rescheduled) {
+        int slot = (int) (tick & (WHEEL_SIZE - 1));
+        Timeout previous = null;
+        Timeout timeout = mSlots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.mNext;
+            // Timeouts more than a lap away share the slot; leave them for a later lap.
+            if (timeout.mDeadlineMs / TICK_MS <= tick) {
+                if (previous == null) {
+                    mSlots[slot] = next;
+                } else {
+                    previous.mNext = next;
+                }
+                timeout.mNext = null;
+
+                long deadlineMs = mHandler.onTimeout(timeout.mConnection, nowMs);
+                if (deadlineMs > 0) {
+                    timeout.mDeadlineMs = deadlineMs;
+                    rescheduled.add(timeout);
+                }
+            } else {
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    /** @param timeout A timeout to put in the slot for its deadline. */
+    private void place(Timeout timeout) {
+        long tick = Math.max(timeout.mDeadlineMs / TICK_MS, mTick);
+        int slot = (int) (tick & (WHEEL_SIZE - 1));
+        timeout.mNext = mSlots[slot];
+        mSlots[slot] = timeout;
+    }
+}
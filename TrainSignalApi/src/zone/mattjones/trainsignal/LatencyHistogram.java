@@ -0,0 +1,133 @@
+/**
+ * File: LatencyHistogram.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: A lock-free, allocation-free histogram of latencies in nanoseconds. Values are sorted
+ *       into log-linear buckets (8 per power of two) so percentiles are accurate to within
+ *       12.5% across the whole range of a long.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    /** The number of bits of precision kept below each power of two. */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /** The number of buckets per power of two. */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** The number of buckets needed to cover every non-negative long. */
+    private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    /** The number of values recorded in each bucket. */
+    private final AtomicLongArray mCounts;
+
+    /** The total number of values recorded. */
+    private final AtomicLong mCount;
+
+    /** The sum of all values recorded. */
+    private final AtomicLong mSum;
+
+    /** The largest value recorded. */
+    private final AtomicLong mMax;
+
+    /** Default constructor. */
+    public LatencyHistogram() {
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+        mCount = new AtomicLong();
+        mSum = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+
+    /**
+     * Record a value.
+     * @param nanos The latency in ns. Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        mCounts.incrementAndGet(bucketIndex(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) break;
+        }
+    }
+
+    /**
+     * Record the time elapsed since a start time.
+     * @param startNanos The start time from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** @return The number of values recorded. */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** @return The sum of all values recorded in ns. */
+    public long getSum() {
+        return mSum.get();
+    }
+
+    /** @return The largest value recorded in ns. */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @param percentile The percentile to get, 0-100.
+     * @return The highest value in the bucket the percentile falls in (in ns), or 0 if nothing
+     *         has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * @param value A non-negative value.
+     * @return The index of the bucket the value belongs in.
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    /**
+     * @param index A bucket index.
+     * @return The largest value that falls in the bucket.
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lower = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                getCount(), getValueAtPercentile(50) / 1000.0,
+                getValueAtPercentile(99) / 1000.0, getValueAtPercentile(99.9) / 1000.0,
+                getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * File: LocalSignalRegistry.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: A signal registry held in memory. Only nodes sharing the same instance see each other,
+ *       so this is for running several nodes in one process (e.g. when testing) or a cluster of
+ *       one.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+class LocalSignalRegistry implements SignalRegistry {
+    /** The node that owns each signal, keyed by signal ID. */
+    private final ConcurrentHashMap<String, String> mOwners;
+
+    /** Default constructor. */
+    LocalSignalRegistry() {
+        mOwners = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void claim(String signalId, String node) {
+        mOwners.put(signalId, node);
+    }
+
+    @Override
+    public void release(String signalId, String node) {
+        mOwners.remove(signalId, node);
+    }
+
+    @Override
+    public String getOwner(String signalId) {
+        return mOwners.get(signalId);
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * File: RateLimitFilter.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Keeps a runaway client from filling the signals' queues and locking everyone else out.
+ *       Each client (by address) and each signal named in a command API request gets a token
+ *       bucket; a request that finds either one empty is answered 429 with a Retry-After before
+ *       any command work is done.
+ *
+ *       Buckets are kept as a single "theoretical arrival time" each (the generic cell rate
+ *       algorithm), which behaves exactly like a token bucket but fits in one AtomicLong, so
+ *       taking a token is a compare-and-set with no locks. Full buckets hold nothing worth
+ *       keeping and are swept out when there are too many.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.annotation.WebInitParam;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+@WebFilter(urlPatterns = {"/api", "/batch", "/frames", "/sequence"},
+        filterName = "RateLimitFilter", asyncSupported = true,
+        initParams = {
+                @WebInitParam(name = "clientRate", value = "20"),
+                @WebInitParam(name = "clientBurst", value = "40"),
+                @WebInitParam(name = "signalRate", value = "5"),
+                @WebInitParam(name = "signalBurst", value = "10")})
+public class RateLimitFilter extends HttpFilter {
+    private static final long serialVersionUID = 20261016L;
+
+    /** The HTTP status for a request over its rate limit. */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** The most buckets of each kind kept before full ones are swept out. */
+    private static final int MAX_BUCKETS = 4096;
+
+    /** The key of the bucket shared by clients or signals that don't fit in the table. */
+    private static final String OVERFLOW_KEY = "";
+
+    /** The response body for a request over its rate limit. */
+    private static final byte[] RATE_LIMITED_RESPONSE =
+            "{\"error\":true,\"rateLimited\":true}".getBytes(StandardCharsets.UTF_8);
+
+    /** A set of token buckets sharing the same rate and burst size. */
+    private static final class BucketTable {
+        /** The time between tokens being added in ns. */
+        private final long mIntervalNanos;
+
+        /** How far ahead of now a bucket's arrival time can be and still admit, in ns. */
+        private final long mToleranceNanos;
+
+        /** The time (from System.nanoTime()) each bucket is next full, by key. */
+        private final ConcurrentHashMap<String, AtomicLong> mBuckets;
+
+        /**
+         * @param ratePerSecond The number of requests allowed per second once the burst is used.
+         * @param burst The number of requests allowed back to back.
+         */
+        BucketTable(int ratePerSecond, int burst) {
+            mIntervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+            mToleranceNanos = mIntervalNanos * (burst - 1);
+            mBuckets = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * Take a token from a bucket.
+         * @param key The bucket's key.
+         * @param nowNanos The current time from System.nanoTime().
+         * @return 0 if a token was taken or how long until one will be available in ns.
+         */
+        long tryAcquire(String key, long nowNanos) {
+            AtomicLong bucket = getBucket(key, nowNanos);
+            while (true) {
+                long storedNanos = bucket.get();
+                // A bucket that's been idle is full; it doesn't bank more than its burst.
+                long arrivalNanos = storedNanos - nowNanos < 0 ? nowNanos : storedNanos;
+                long waitNanos = arrivalNanos - nowNanos - mToleranceNanos;
+                if (waitNanos > 0) return waitNanos;
+                if (bucket.compareAndSet(storedNanos, arrivalNanos + mIntervalNanos)) return 0;
+            }
+        }
+
+        /**
+         * @param key The bucket's key.
+         * @param nowNanos The current time from System.nanoTime().
+         * @return The bucket for the key, created full if there wasn't one.
+         */
+        private AtomicLong getBucket(String key, long nowNanos) {
+            AtomicLong bucket = mBuckets.get(key);
+            if (bucket != null) return bucket;
+
+            if (mBuckets.size() >= MAX_BUCKETS) {
+                mBuckets.values().removeIf((b) -> b.get() - nowNanos <= 0);
+                if (mBuckets.size() >= MAX_BUCKETS) key = OVERFLOW_KEY;
+            }
+            bucket = mBuckets.putIfAbsent(key, new AtomicLong(nowNanos));
+            return bucket != null ? bucket : mBuckets.get(key);
+        }
+    }
+
+    /** A bucket for each client address. */
+    private BucketTable mClients;
+
+    /** A bucket for each signal named in a command API request. */
+    private BucketTable mSignals;
+
+    @Override
+    public void init() throws ServletException {
+        mClients = new BucketTable(getIntParameter("clientRate", 20),
+                getIntParameter("clientBurst", 40));
+        mSignals = new BucketTable(getIntParameter("signalRate", 5),
+                getIntParameter("signalBurst", 10));
+    }
+
+    /**
+     * @param name The name of an init param.
+     * @param defaultValue The value to use if the param is missing or invalid.
+     * @return The value of the param.
+     */
+    private int getIntParameter(String name, int defaultValue) {
+        return TrainSignalApi.parseIntParameter(name, getInitParameter(name), defaultValue);
+    }
+
+    @Override
+    public void doFilter(HttpServletRequest req, HttpServletResponse res,
+            FilterChain chain) throws IOException, ServletException {
+        // Preflights never reach a servlet, so they don't cost anything worth limiting.
+        if ("OPTIONS".equals(req.getMethod())) {
+            super.doFilter(req, res, chain);
+            return;
+        }
+
+        long nowNanos = System.nanoTime();
+        long waitNanos = mClients.tryAcquire(req.getRemoteAddr(), nowNanos);
+        if (waitNanos == 0 && "/api".equals(req.getServletPath())) {
+            // Only the command API names its signal in the URL; the others would need their
+            // bodies read, which is the work this filter is meant to save.
+            String signalId = req.getParameter("signal");
+            if (signalId == null) signalId = TrainSignalMessage.DEFAULT_SIGNAL_ID;
+            if (TrainSignalMessage.isValidSignalId(signalId)) {
+                waitNanos = mSignals.tryAcquire(signalId, nowNanos);
+            }
+        }
+        if (waitNanos == 0) {
+            super.doFilter(req, res, chain);
+            return;
+        }
+
+        SignalServer server = (SignalServer) getServletContext().getAttribute(
+                TrainSignalApi.SERVER_ATTRIBUTE);
+        if (server != null) server.getMetrics().recordRateLimited();
+        res.setStatus(SC_TOO_MANY_REQUESTS);
+        res.setHeader("Retry-After", Long.toString(
+                TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1)));
+        TrainSignalApi.writeResponse(res, RATE_LIMITED_RESPONSE);
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * File: SignalAspect.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Every combination of color and lamp state the signal can show, with the message and API
+ *       response for each built once up front. Nothing here is ever modified after class
+ *       initialization, so the same instances are shared by every request.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.nio.charset.StandardCharsets;
+
+import zone.mattjones.trainsignal.SignalServer.DeliveryResult;
+import zone.mattjones.trainsignal.TrainSignalMessage.LampState;
+import zone.mattjones.trainsignal.TrainSignalMessage.SignalColor;
+
+public enum SignalAspect {
+    RED_ON(SignalColor.RED, LampState.ON),
+    RED_BLINK(SignalColor.RED, LampState.BLINK),
+    RED_OFF(SignalColor.RED, LampState.OFF),
+    YELLOW_ON(SignalColor.YELLOW, LampState.ON),
+    YELLOW_BLINK(SignalColor.YELLOW, LampState.BLINK),
+    YELLOW_OFF(SignalColor.YELLOW, LampState.OFF),
+    GREEN_ON(SignalColor.GREEN, LampState.ON),
+    GREEN_BLINK(SignalColor.GREEN, LampState.BLINK),
+    GREEN_OFF(SignalColor.GREEN, LampState.OFF);
+
+    /** Lookup table indexed by [color ordinal][lamp state ordinal]. */
+    private static final SignalAspect[][] BY_COLOR_AND_LAMP =
+            new SignalAspect[SignalColor.values().length][LampState.values().length];
+
+    /** Lookup table indexed by the unsigned state byte sent to the signal. */
+    private static final SignalAspect[] BY_STATE_BYTE = new SignalAspect[256];
+
+    static {
+        for (SignalAspect aspect : values()) {
+            BY_COLOR_AND_LAMP[aspect.mColor.ordinal()][aspect.mLampState.ordinal()] = aspect;
+            BY_STATE_BYTE[aspect.getStateByte() & 0xFF] = aspect;
+        }
+    }
+
+    /** The color of the signal. */
+    private final SignalColor mColor;
+
+    /** The state of the lamp. */
+    private final LampState mLampState;
+
+    /** The message to send to the signal. Shared, so this must never be modified. */
+    private final byte[] mMessage;
+
+    /** The API response for this aspect when the command was accepted. */
+    private final byte[] mSuccessResponse;
+
+    /** The API response for this aspect when the command was rejected. */
+    private final byte[] mErrorResponse;
+
+    /** The API responses for this aspect when waiting for an ack, indexed by result ordinal. */
+    private final byte[][] mDeliveryResponses;
+
+    SignalAspect(SignalColor color, LampState lampState) {
+        mColor = color;
+        mLampState = lampState;
+        mMessage = TrainSignalMessage.generateMessage(color, lampState);
+        mSuccessResponse = buildResponse(false);
+        mErrorResponse = buildResponse(true);
+
+        DeliveryResult[] results = DeliveryResult.values();
+        mDeliveryResponses = new byte[results.length][];
+        for (DeliveryResult result : results) {
+            mDeliveryResponses[result.ordinal()] = buildResponse(result);
+        }
+    }
+
+    /**
+     * @param color The color of the signal.
+     * @param lampState The state of the lamp.
+     * @return The aspect for the color and lamp state.
+     */
+    public static SignalAspect of(SignalColor color, LampState lampState) {
+        return BY_COLOR_AND_LAMP[color.ordinal()][lampState.ordinal()];
+    }
+
+    /**
+     * @param message A message sent to the signal.
+     * @return The aspect the message changes the signal to or null if it isn't a state command.
+     */
+    static SignalAspect fromMessage(byte[] message) {
+        if (message.length != 2 || message[1] != TrainSignalMessage.MESSAGE_TERMINATING_CHAR) {
+            return null;
+        }
+        return fromStateByte(message[0]);
+    }
+
+    /**
+     * @param state A state byte sent to the signal.
+     * @return The aspect for the state byte or null if it isn't one.
+     */
+    static SignalAspect fromStateByte(byte state) {
+        return BY_STATE_BYTE[state & 0xFF];
+    }
+
+    /** @return The color of the signal. */
+    public SignalColor getColor() {
+        return mColor;
+    }
+
+    /** @return The state of the lamp. */
+    public LampState getLampState() {
+        return mLampState;
+    }
+
+    /** @return The state byte sent to the signal for this aspect. */
+    public byte getStateByte() {
+        return mMessage[0];
+    }
+
+    /** @return The shared message bytes. Must not be modified. */
+    byte[] getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * @param success Whether the command was accepted.
+     * @return The UTF-8 encoded JSON API response. Shared, so this must not be modified.
+     */
+    byte[] getResponse(boolean success) {
+        return success ? mSuccessResponse : mErrorResponse;
+    }
+
+    /**
+     * @param result What happened to the command.
+     * @return The UTF-8 encoded JSON API response for a caller that waited for the ack. Shared,
+     *         so this must not be modified.
+     */
+    byte[] getDeliveryResponse(DeliveryResult result) {
+        return mDeliveryResponses[result.ordinal()];
+    }
+
+    /**
+     * @param error The value of the error field.
+     * @return The UTF-8 encoded JSON API response.
+     */
+    private byte[] buildResponse(boolean error) {
+        return ("{" + responseFields(error) + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param result What happened to the command.
+     * @return The UTF-8 encoded JSON API response for a caller that waited for the ack.
+     */
+    private byte[] buildResponse(DeliveryResult result) {
+        return ("{" + responseFields(result != DeliveryResult.ACKED) + ",\"delivery\":\""
+                + result.name().toLowerCase() + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param error The value of the error field.
+     * @return The fields every API response has.
+     */
+    private String responseFields(boolean error) {
+        // The state byte is reported as a one character string. Some states are control
+        // characters, which have to be escaped to be valid JSON.
+        char state = (char) mMessage[0];
+        String stateString = state < 0x20 ? String.format("\\u%04x", (int) state)
+                : String.valueOf(state);
+        return "\"error\":" + error + ",\"currentState\":\"" + stateString + "!\"";
+    }
+}
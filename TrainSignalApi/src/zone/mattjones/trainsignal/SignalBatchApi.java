@@ -0,0 +1,311 @@
+/**
+ * File: SignalBatchApi.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: API for changing many signals in one request, e.g. setting a whole route. POST to /batch
+ *       with either a JSON object mapping signal IDs to the same color and lamp codes the command
+ *       API takes ({"north":"g1","south":"rb"}) or, as application/octet-stream, version 1
+ *       COMMAND frames back to back. Every command is queued before any signal is written to, so
+ *       each signal's socket gets a single write for the whole batch. The response has the
+ *       result for each signal; add ?wait=ack to respond once every signal has acked.
+ *
+ *       The whole batch is validated before anything is sent, so a malformed request changes no
+ *       signals.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebInitParam;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import zone.mattjones.trainsignal.SignalServer.DeliveryResult;
+
+@WebServlet(name = "SignalBatchApi", urlPatterns = "/batch", loadOnStartup = 2,
+        asyncSupported = true,
+        initParams = {@WebInitParam(name = "ackWaitTimeoutMs", value = "10000")})
+public class SignalBatchApi extends HttpServlet {
+    private static final long serialVersionUID = 20261016L;
+
+    /** The most signals a single request can change. */
+    static final int MAX_BATCH_SIZE = 256;
+
+    /** The largest JSON body accepted in bytes. */
+    private static final int MAX_JSON_BODY_BYTES = 16 * 1024;
+
+    /** The content type for a body of binary frames. */
+    private static final String BINARY_CONTENT_TYPE = "application/octet-stream";
+
+    /** The init param for how long a request with wait=ack waits for the acks in ms. */
+    private static final String ACK_WAIT_TIMEOUT_PARAM = "ackWaitTimeoutMs";
+
+    /** The default time a request with wait=ack waits for the acks in ms. */
+    private static final int DEFAULT_ACK_WAIT_TIMEOUT_MS = 10000;
+
+    /** How long a request with wait=ack waits for the acks in ms. */
+    private int mAckWaitTimeoutMs;
+
+    public SignalBatchApi() {}
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        mAckWaitTimeoutMs = TrainSignalApi.getIntParameter(config, ACK_WAIT_TIMEOUT_PARAM,
+                DEFAULT_ACK_WAIT_TIMEOUT_MS);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        SignalServer server = (SignalServer) getServletContext().getAttribute(
+                TrainSignalApi.SERVER_ATTRIBUTE);
+        if (server == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        Map<String, SignalAspect> aspects;
+        try {
+            String contentType = request.getContentType();
+            if (contentType != null && contentType.startsWith(BINARY_CONTENT_TYPE)) {
+                aspects = parseFrames(request.getInputStream());
+            } else {
+                aspects = parseJson(readBody(request.getInputStream()));
+            }
+            if (aspects.isEmpty()) throw new IllegalArgumentException("No signals in batch.");
+        } catch (IllegalArgumentException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+
+        // Estimate before queueing so the new commands don't count as the signals' current ones.
+        TrainSignalApi.setTimeToDisplay(response,
+                server.estimateTimeToDisplayMs(aspects.keySet()));
+
+        if ("ack".equals(request.getParameter("wait"))) {
+            Map<String, CompletableFuture<DeliveryResult>> deliveries =
+                    server.addTrackedMessages(aspects);
+            server.getMetrics().getRequestToEnqueue().recordSince(startNanos);
+            TrainSignalApi.respondWhenDelivered(request, deliveries.values(), mAckWaitTimeoutMs,
+                    (out) -> TrainSignalApi.writeResponse(out,
+                            buildDeliveryResponse(deliveries, aspects)));
+            return;
+        }
+
+        Map<String, Boolean> results = server.addMessages(aspects);
+        server.getMetrics().getRequestToEnqueue().recordSince(startNanos);
+        StringBuilder builder = startResponse(results.containsValue(false));
+        for (Map.Entry<String, Boolean> entry : results.entrySet()) {
+            appendResult(builder, entry.getKey(),
+                    aspects.get(entry.getKey()).getResponse(entry.getValue()));
+        }
+        TrainSignalApi.writeResponse(response, finishResponse(builder));
+    }
+
+    /**
+     * @param deliveries What happened to each command, null for ones that couldn't be queued.
+     *                   Every future must be complete.
+     * @param aspects The aspect each signal was asked to show.
+     * @return The UTF-8 encoded JSON response.
+     */
+    private static byte[] buildDeliveryResponse(
+            Map<String, CompletableFuture<DeliveryResult>> deliveries,
+            Map<String, SignalAspect> aspects) {
+        boolean error = false;
+        Map<String, byte[]> results = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<DeliveryResult>> entry : deliveries.entrySet()) {
+            SignalAspect aspect = aspects.get(entry.getKey());
+            DeliveryResult result = entry.getValue() == null ? null : entry.getValue().join();
+            error |= result != DeliveryResult.ACKED;
+            results.put(entry.getKey(), result == null ? aspect.getResponse(false)
+                    : aspect.getDeliveryResponse(result));
+        }
+
+        StringBuilder builder = startResponse(error);
+        for (Map.Entry<String, byte[]> entry : results.entrySet()) {
+            appendResult(builder, entry.getKey(), entry.getValue());
+        }
+        return finishResponse(builder);
+    }
+
+    /**
+     * @param error Whether any signal in the batch failed.
+     * @return A builder holding the start of the response.
+     */
+    private static StringBuilder startResponse(boolean error) {
+        return new StringBuilder("{\"error\":").append(error).append(",\"signals\":{");
+    }
+
+    /**
+     * @param builder The response being built.
+     * @param signalId The ID of the signal.
+     * @param result The signal's JSON result.
+     */
+    private static void appendResult(StringBuilder builder, String signalId, byte[] result) {
+        if (builder.charAt(builder.length() - 1) != '{') builder.append(',');
+        // Signal IDs are validated, so they never need escaping.
+        builder.append('"').append(signalId).append("\":")
+                .append(new String(result, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param builder The response being built.
+     * @return The UTF-8 encoded JSON response.
+     */
+    private static byte[] finishResponse(StringBuilder builder) {
+        return builder.append("}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param in The request body.
+     * @return The body as a string.
+     */
+    static String readBody(InputStream in) throws IOException {
+        byte[] body = in.readNBytes(MAX_JSON_BODY_BYTES + 1);
+        if (body.length > MAX_JSON_BODY_BYTES) {
+            throw new IllegalArgumentException("Body exceeded " + MAX_JSON_BODY_BYTES + " bytes.");
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a JSON object mapping signal IDs to aspect codes, e.g. {"north":"g1","south":"rb"}.
+     * Only the subset of JSON needed for this is understood: string keys and string values with
+     * no escapes. If a signal is listed more than once, the last one wins.
+     * @param body The request body.
+     * @return The aspect for each signal in the order they appeared.
+     */
+    static Map<String, SignalAspect> parseJson(String body) {
+        Map<String, SignalAspect> aspects = new LinkedHashMap<>();
+        int[] index = {skipWhitespace(body, 0)};
+        expect(body, index, '{');
+        if (peek(body, index) == '}') {
+            index[0]++;
+        } else {
+            while (true) {
+                String signalId = readString(body, index);
+                expect(body, index, ':');
+                String value = readString(body, index);
+                addAspect(aspects, signalId, parseAspect(value));
+                if (peek(body, index) == ',') {
+                    index[0]++;
+                    continue;
+                }
+                expect(body, index, '}');
+                break;
+            }
+        }
+        if (skipWhitespace(body, index[0]) != body.length()) {
+            throw new IllegalArgumentException("Unexpected data after JSON object.");
+        }
+        return aspects;
+    }
+
+    /**
+     * Parse version 1 COMMAND frames sent back to back. If a signal is sent more than one
+     * command, the last one wins.
+     * @param in The request body.
+     * @return The aspect for each signal in the order they appeared.
+     */
+    static Map<String, SignalAspect> parseFrames(InputStream in) {
+        Map<String, SignalAspect> aspects = new LinkedHashMap<>();
+        for (SignalCommandFrame frame : SignalCommandFrame.parseAll(in, MAX_BATCH_SIZE)) {
+            addAspect(aspects, frame.getSignalId(), frame.getAspect());
+        }
+        return aspects;
+    }
+
+    /**
+     * @param aspects The aspects parsed so far.
+     * @param signalId The ID of the signal.
+     * @param aspect The aspect for the signal.
+     */
+    private static void addAspect(Map<String, SignalAspect> aspects, String signalId,
+            SignalAspect aspect) {
+        if (!TrainSignalMessage.isValidSignalId(signalId)) {
+            throw new IllegalArgumentException("Invalid signal ID.");
+        }
+        aspects.remove(signalId);
+        aspects.put(signalId, aspect);
+        if (aspects.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch exceeded " + MAX_BATCH_SIZE + " signals.");
+        }
+    }
+
+    /**
+     * @param value A color code followed by a lamp code, e.g. "g1".
+     * @return The aspect the value asks for.
+     */
+    static SignalAspect parseAspect(String value) {
+        // Unlike the command API, unknown codes are rejected rather than defaulting to red so a
+        // typo can't silently change a whole route.
+        if (value.length() != 2 || "rygRYG".indexOf(value.charAt(0)) < 0
+                || "01bB".indexOf(value.charAt(1)) < 0) {
+            throw new IllegalArgumentException("Invalid aspect '" + value + "'.");
+        }
+        return SignalAspect.of(TrainSignalApi.parseColor(value.substring(0, 1)),
+                TrainSignalApi.parseLampState(value.substring(1)));
+    }
+
+    /**
+     * @param body The JSON being parsed.
+     * @param index The current index, which is moved past the string.
+     * @return The string at the index.
+     */
+    static String readString(String body, int[] index) {
+        expect(body, index, '"');
+        int end = body.indexOf('"', index[0]);
+        if (end < 0) throw new IllegalArgumentException("Unterminated string.");
+        String value = body.substring(index[0], end);
+        if (value.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("Escapes aren't supported.");
+        }
+        index[0] = end + 1;
+        return value;
+    }
+
+    /**
+     * @param body The JSON being parsed.
+     * @param index The current index, which is moved past the character.
+     * @param expected The character expected after any whitespace.
+     */
+    static void expect(String body, int[] index, char expected) {
+        if (peek(body, index) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at " + index[0]
+                    + ".");
+        }
+        index[0]++;
+    }
+
+    /**
+     * @param body The JSON being parsed.
+     * @param index The current index, which is moved past any whitespace.
+     * @return The next character or 0 at the end of the body.
+     */
+    static char peek(String body, int[] index) {
+        index[0] = skipWhitespace(body, index[0]);
+        return index[0] < body.length() ? body.charAt(index[0]) : 0;
+    }
+
+    /**
+     * @param body The JSON being parsed.
+     * @param index The index to start from.
+     * @return The index of the next character that isn't whitespace.
+     */
+    static int skipWhitespace(String body, int index) {
+        while (index < body.length() && Character.isWhitespace(body.charAt(index))) index++;
+        return index;
+    }
+}
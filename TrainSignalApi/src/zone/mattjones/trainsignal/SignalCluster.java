@@ -0,0 +1,510 @@
+/**
+ * File: SignalCluster.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Lets several API nodes share the signals between them so signals can connect to any
+ *       node and API requests can go to any node (e.g. behind a load balancer). Each node
+ *       records the signals connected to it in a shared registry, and a command for a signal
+ *       owned by another node is forwarded to that node over a plain TCP link, where it's
+ *       queued as if it had been sent there directly.
+ *
+ *       The link speaks the same version 1 frames as the signals: a COMMAND frame carries the
+ *       signal ID and a payload of the state byte and a flags byte. If the sender is tracking
+ *       the command, the owner answers with an ACK frame carrying the same sequence number and
+ *       a result byte once it knows what happened to it; otherwise nothing is sent back. Each
+ *       node keeps one link to each node it forwards to, and commands on it are pipelined.
+ *
+ *       If the owner can't be reached the command is queued locally instead, so it still
+ *       reaches the signal if it reconnects to this node.
+ *
+ *       Links aren't authenticated and skip the servlet filters, so the cluster socket only
+ *       listens on the interface for the node's own address. That should be a network only the
+ *       nodes can reach.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import zone.mattjones.trainsignal.SignalServer.DeliveryResult;
+import zone.mattjones.trainsignal.TrainSignalMessage.MessageType;
+
+class SignalCluster {
+    /** The flag set in a forwarded command's flags byte when the sender waits for a result. */
+    private static final byte FLAG_TRACKED = 1;
+
+    /** The longest the owner tracks a forwarded command before answering TIMEOUT in ms. */
+    private static final long FORWARD_TIMEOUT_MS = 30000;
+
+    /** How long to wait to connect to another node in ms. */
+    private static final int CONNECT_TIMEOUT_MS = 500;
+
+    /** How long to wait before trying to connect to a node that couldn't be reached in ms. */
+    private static final long RETRY_DELAY_MS = 1000;
+
+    /** How long to wait before trying to bind the cluster socket again in ms. */
+    private static final long BIND_RETRY_MS = 5000;
+
+    /** The longest stop() waits for queued registry updates in ms. */
+    private static final long REGISTRY_DRAIN_MS = 2000;
+
+    /** The server commands are queued on. */
+    private final SignalServer mServer;
+
+    /** Where the owner of each signal is recorded. */
+    private final SignalRegistry mRegistry;
+
+    /** The address (host:port) other nodes reach this one at. */
+    private final String mNode;
+
+    /** The address the cluster socket listens on. */
+    private final InetSocketAddress mListenAddress;
+
+    /** Creates every thread the cluster uses. */
+    private final ThreadFactory mThreadFactory;
+
+    /** Updates the registry in the order signals connect and disconnect, off the I/O threads. */
+    private final ExecutorService mRegistryExecutor;
+
+    /**
+     * The signals this node has claimed in the registry. Only changed by mRegistryExecutor, and
+     * by stop() once that has finished.
+     */
+    private final Set<String> mClaimed;
+
+    /** Links to other nodes, keyed by their address. */
+    private final ConcurrentHashMap<String, PeerLink> mPeers;
+
+    /**
+     * Held while connecting to a node, keyed by its address, so a node that's slow to answer
+     * only holds up commands for that node.
+     */
+    private final ConcurrentHashMap<String, Object> mConnectLocks;
+
+    /** The time (ms) each node that couldn't be reached can be tried again, keyed by address. */
+    private final ConcurrentHashMap<String, Long> mRetryAfterMs;
+
+    /** Links other nodes opened to this one. */
+    private final Set<SocketChannel> mInbound;
+
+    /** The socket listening for links from other nodes. */
+    private volatile ServerSocketChannel mServerChannel;
+
+    /** Whether the cluster has been stopped. */
+    private volatile boolean mStopped;
+
+    /**
+     * @param server The server commands are queued on.
+     * @param registry Where the owner of each signal is recorded.
+     * @param node The address (host:port) other nodes reach this one at. The cluster socket
+     *             listens on just that address.
+     */
+    SignalCluster(SignalServer server, SignalRegistry registry, String node) {
+        mServer = server;
+        mRegistry = registry;
+        mNode = node;
+        mListenAddress = parseAddress(node);
+        mThreadFactory = VirtualThreads.newFactory("cluster-");
+        mRegistryExecutor = Executors.newSingleThreadExecutor(mThreadFactory);
+        mClaimed = ConcurrentHashMap.newKeySet();
+        mPeers = new ConcurrentHashMap<>();
+        mConnectLocks = new ConcurrentHashMap<>();
+        mRetryAfterMs = new ConcurrentHashMap<>();
+        mInbound = ConcurrentHashMap.newKeySet();
+        mThreadFactory.newThread(this::acceptLinks).start();
+    }
+
+    /** @return The address (host:port) other nodes reach this one at. */
+    String getNode() {
+        return mNode;
+    }
+
+    /** @param signalId A signal that connected to this node. Ignored once stopped. */
+    void claim(String signalId) {
+        updateRegistry(() -> {
+            try {
+                mRegistry.claim(signalId, mNode);
+                mClaimed.add(signalId);
+            } catch (IOException ex) {
+                SignalLog.error(signalId, "Failed to claim signal: " + ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * @param signalId A signal that disconnected from this node. Ignored once stopped, since
+     *                 stop() releases every signal itself.
+     */
+    void release(String signalId) {
+        updateRegistry(() -> releaseNow(signalId));
+    }
+
+    /** @param signalId A signal to release in the registry on the calling thread. */
+    private void releaseNow(String signalId) {
+        try {
+            mRegistry.release(signalId, mNode);
+        } catch (IOException ex) {
+            SignalLog.error(signalId, "Failed to release signal: " + ex.getMessage());
+        }
+        mClaimed.remove(signalId);
+    }
+
+    /**
+     * Queue a registry update unless the cluster has been stopped. This is called from the
+     * threads talking to signals, so it must never throw at them.
+     * @param update The update.
+     */
+    private void updateRegistry(Runnable update) {
+        if (mStopped) return;
+        try {
+            mRegistryExecutor.execute(update);
+        } catch (RejectedExecutionException ex) {
+            // Stopped in the meantime.
+        }
+    }
+
+    /**
+     * Send a state command to the node that owns its signal if that's another node. A tracked
+     * command is completed with the result the owner reports.
+     * @param signalId The ID of the signal.
+     * @param command The command.
+     * @return Whether the command was forwarded; if not it should be queued on this node.
+     */
+    boolean forward(String signalId, SignalCommand command) {
+        String owner;
+        try {
+            owner = mRegistry.getOwner(signalId);
+        } catch (IOException ex) {
+            SignalLog.error(signalId, "Failed to look up owner: " + ex.getMessage());
+            return false;
+        }
+        if (owner == null || owner.equals(mNode)) return false;
+
+        PeerLink link = getLink(owner);
+        return link != null && link.send(signalId, command);
+    }
+
+    /** Close the cluster socket and every link and release every signal this node owns. */
+    void stop() {
+        mStopped = true;
+        closeQuietly(mServerChannel);
+        for (SocketChannel channel : mInbound) {
+            closeQuietly(channel);
+        }
+        for (PeerLink link : mPeers.values()) {
+            link.close();
+        }
+
+        // Let queued updates finish, then release whatever this node still owns so other nodes
+        // don't keep forwarding to it.
+        mRegistryExecutor.shutdown();
+        try {
+            mRegistryExecutor.awaitTermination(REGISTRY_DRAIN_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (String signalId : mClaimed) {
+            releaseNow(signalId);
+        }
+    }
+
+    /**
+     * @param node The address of another node.
+     * @return An open link to the node or null if it can't be reached right now.
+     */
+    private PeerLink getLink(String node) {
+        PeerLink link = mPeers.get(node);
+        if (link != null) return link;
+
+        Long retryAfterMs = mRetryAfterMs.get(node);
+        if (retryAfterMs != null && System.currentTimeMillis() < retryAfterMs) return null;
+
+        synchronized (mConnectLocks.computeIfAbsent(node, (n) -> new Object())) {
+            link = mPeers.get(node);
+            if (link != null || mStopped) return link;
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.socket().connect(parseAddress(node), CONNECT_TIMEOUT_MS);
+                SignalConnection.configureSocket(channel);
+            } catch (IOException | IllegalArgumentException ex) {
+                closeQuietly(channel);
+                SignalLog.error("Failed to connect to cluster node " + node + ": "
+                        + ex.getMessage());
+                mRetryAfterMs.put(node, System.currentTimeMillis() + RETRY_DELAY_MS);
+                return null;
+            }
+            mRetryAfterMs.remove(node);
+            link = new PeerLink(node, channel);
+            mPeers.put(node, link);
+        }
+        mThreadFactory.newThread(link::readResults).start();
+        return link;
+    }
+
+    /** Accept links from other nodes until stopped, reopening the cluster socket as needed. */
+    private void acceptLinks() {
+        while (!mStopped) {
+            ServerSocketChannel serverChannel = null;
+            try {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                serverChannel.bind(mListenAddress);
+            } catch (IOException ex) {
+                closeQuietly(serverChannel);
+                SignalLog.error("Failed to create cluster socket: " + ex.getMessage());
+                try {
+                    Thread.sleep(BIND_RETRY_MS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+
+            // Closing the cluster socket is how stop() interrupts accept().
+            mServerChannel = serverChannel;
+            if (mStopped) break;
+
+            try {
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    try {
+                        SignalConnection.configureSocket(channel);
+                    } catch (IOException ex) {
+                        SignalLog.error("Failed to set up cluster link: " + ex.getMessage());
+                        closeQuietly(channel);
+                        continue;
+                    }
+                    mInbound.add(channel);
+                    mThreadFactory.newThread(() -> handleLink(channel)).start();
+                }
+            } catch (IOException ex) {
+                if (serverChannel.isOpen()) {
+                    SignalLog.error("Failed to accept cluster link: " + ex.getMessage());
+                }
+            } finally {
+                closeQuietly(serverChannel);
+            }
+        }
+    }
+
+    /**
+     * Queue the commands another node forwards over a link until it's closed. Results are
+     * written by a thread of their own so the threads talking to signals never block on it.
+     * @param channel The link from the other node.
+     */
+    private void handleLink(SocketChannel channel) {
+        ExecutorService replies = Executors.newSingleThreadExecutor(mThreadFactory);
+        ByteBuffer replyBuffer = ByteBuffer.allocate(TrainSignalMessage.MAX_FRAME_SIZE);
+        SignalFrameDecoder decoder = new SignalFrameDecoder();
+        try {
+            while (decoder.read(channel)) {
+                while (decoder.nextMessage()) {
+                    if (decoder.getVersion() == 0 || decoder.getType() != MessageType.COMMAND) {
+                        throw new IOException("Received unexpected message on cluster link!");
+                    }
+                    int sequence = decoder.getSequence();
+                    String signalId = decoder.getSignalId();
+                    boolean tracked = decoder.getPayloadLength() > 1
+                            && (decoder.getPayloadByte(1) & FLAG_TRACKED) != 0;
+                    SignalAspect aspect = decoder.getPayloadLength() > 0
+                            ? SignalAspect.fromStateByte(decoder.getPayloadByte(0)) : null;
+
+                    SignalCommand command = aspect == null ? null
+                            : new SignalCommand(aspect.getMessage(), tracked);
+                    boolean queued = command != null && signalId != null
+                            && mServer.addLocalCommand(signalId, command);
+                    if (!tracked) continue;
+                    if (!queued) {
+                        replies.execute(() -> writeResult(channel, replyBuffer, sequence,
+                                TrainSignalMessage.ACK_RESULT_REJECTED));
+                        continue;
+                    }
+                    command.getDelivery()
+                            .completeOnTimeout(DeliveryResult.TIMEOUT, FORWARD_TIMEOUT_MS,
+                                    TimeUnit.MILLISECONDS)
+                            .thenAcceptAsync((result) -> writeResult(channel, replyBuffer,
+                                    sequence, (byte) result.ordinal()), replies);
+                }
+            }
+        } catch (IOException ex) {
+            if (!mStopped) {
+                SignalLog.error("Cluster link failed: " + ex.getMessage());
+            }
+        } finally {
+            mInbound.remove(channel);
+            closeQuietly(channel);
+            replies.shutdown();
+        }
+    }
+
+    /**
+     * Tell the node that forwarded a command what happened to it. Only called by the link's
+     * reply thread.
+     * @param channel The link to the node.
+     * @param buffer The link's reply buffer.
+     * @param sequence The sequence number of the forwarded command.
+     * @param result The result byte.
+     */
+    private static void writeResult(SocketChannel channel, ByteBuffer buffer, int sequence,
+            byte result) {
+        buffer.clear();
+        TrainSignalMessage.writeFrame(buffer, MessageType.ACK, sequence, null,
+                new byte[] {result}, 0, 1);
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException ex) {
+            // The reading thread notices the link is gone.
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * @param node An address in host:port form.
+     * @return The socket address.
+     */
+    private static InetSocketAddress parseAddress(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Expected host:port, got " + node);
+        return new InetSocketAddress(node.substring(0, colon),
+                Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    /** @param channel A socket to close, ignoring any errors. May be null. */
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Nothing else can be done.
+        }
+    }
+
+    /** A link this node opened to forward commands to another node. */
+    private final class PeerLink {
+        /** The address of the other node. */
+        private final String mAddress;
+
+        /** The connected socket. */
+        private final SocketChannel mChannel;
+
+        /** Holds the frame being written. Guarded by the link. */
+        private final ByteBuffer mWriteBuffer;
+
+        /** The sequence number for the next forwarded command. */
+        private final AtomicInteger mSequence;
+
+        /** Tracked commands waiting on a result, keyed by sequence number. */
+        private final ConcurrentHashMap<Integer, SignalCommand> mWaiting;
+
+        /**
+         * @param address The address of the other node.
+         * @param channel The connected socket.
+         */
+        PeerLink(String address, SocketChannel channel) {
+            mAddress = address;
+            mChannel = channel;
+            mWriteBuffer = ByteBuffer.allocate(TrainSignalMessage.MAX_FRAME_SIZE);
+            mSequence = new AtomicInteger();
+            mWaiting = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * @param signalId The ID of the signal.
+         * @param command The command to forward.
+         * @return Whether the command was written to the link.
+         */
+        boolean send(String signalId, SignalCommand command) {
+            int sequence = mSequence.getAndIncrement() & 0xFFFF;
+            boolean tracked = command.getDelivery() != null;
+            if (tracked) mWaiting.put(sequence, command);
+            byte[] payload = {command.getMessage()[0], tracked ? FLAG_TRACKED : 0};
+
+            synchronized (this) {
+                mWriteBuffer.clear();
+                TrainSignalMessage.writeFrame(mWriteBuffer, MessageType.COMMAND, sequence,
+                        signalId.getBytes(StandardCharsets.US_ASCII), payload, 0,
+                        payload.length);
+                mWriteBuffer.flip();
+                try {
+                    while (mWriteBuffer.hasRemaining()) mChannel.write(mWriteBuffer);
+                } catch (IOException ex) {
+                    SignalLog.error(signalId, "Failed to forward to " + mAddress + ": "
+                            + ex.getMessage());
+                    mWaiting.remove(sequence);
+                    close();
+                    return false;
+                }
+            }
+            // Don't hold on to commands the caller gave up on.
+            if (tracked) {
+                command.getDelivery().whenComplete((result, ex) ->
+                        mWaiting.remove(sequence, command));
+            }
+            return true;
+        }
+
+        /** Complete tracked commands with the results the other node sends back until closed. */
+        private void readResults() {
+            SignalFrameDecoder decoder = new SignalFrameDecoder();
+            try {
+                while (decoder.read(mChannel)) {
+                    while (decoder.nextMessage()) {
+                        if (decoder.getVersion() == 0 || decoder.getType() != MessageType.ACK
+                                || decoder.getPayloadLength() < 1) {
+                            throw new IOException("Received unexpected message from "
+                                    + mAddress + "!");
+                        }
+                        SignalCommand command = mWaiting.remove(decoder.getSequence());
+                        if (command != null) {
+                            command.complete(toResult(decoder.getPayloadByte(0)));
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                if (!mStopped) {
+                    SignalLog.error("Cluster link to " + mAddress + " failed: "
+                            + ex.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /** Close the link. Commands still waiting on a result are reported dropped. */
+        void close() {
+            mPeers.remove(mAddress, this);
+            closeQuietly(mChannel);
+            for (SignalCommand command : mWaiting.values()) {
+                command.complete(DeliveryResult.DROPPED);
+            }
+            mWaiting.clear();
+        }
+
+        /**
+         * @param result A result byte from the other node.
+         * @return What happened to the command.
+         */
+        private DeliveryResult toResult(byte result) {
+            DeliveryResult[] results = DeliveryResult.values();
+            return result >= 0 && result < results.length ? results[result]
+                    : DeliveryResult.DROPPED;
+        }
+    }
+}
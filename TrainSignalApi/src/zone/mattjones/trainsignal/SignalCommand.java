@@ -0,0 +1,99 @@
+/**
+ * File: SignalCommand.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: A message queued for a signal along with the bookkeeping needed to track it through the
+ *       connection handler.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.util.concurrent.CompletableFuture;
+
+import zone.mattjones.trainsignal.SignalServer.DeliveryResult;
+
+class SignalCommand {
+    /** The message to write to the signal. */
+    private final byte[] mMessage;
+
+    /** The time (from System.nanoTime()) the command was added to the queue. */
+    private final long mEnqueuedNanos;
+
+    /** Whether this is a ping rather than a change to the signal's state. */
+    private final boolean mIsPing;
+
+    /** Completed once it's known what happened to the command or null if nothing is waiting. */
+    private final CompletableFuture<DeliveryResult> mDelivery;
+
+    /**
+     * The time (from System.nanoTime()) the command was handed to a signal's socket or 0 if it
+     * hasn't been. Only touched by whichever thread owns the connection.
+     */
+    private long mWrittenNanos;
+
+    /** The number of times the command was handed to a new connection after one was lost. */
+    private int mHandOffCount;
+
+    /** @param message The message to write to the signal. */
+    SignalCommand(byte[] message) {
+        this(message, false);
+    }
+
+    /**
+     * @param message The message to write to the signal.
+     * @param tracked Whether something will wait to find out what happened to the command.
+     */
+    SignalCommand(byte[] message, boolean tracked) {
+        mMessage = message;
+        mEnqueuedNanos = System.nanoTime();
+        mIsPing = TrainSignalMessage.isAckMessage(message);
+        mDelivery = tracked ? new CompletableFuture<>() : null;
+    }
+
+    /** @return The message to write to the signal. */
+    byte[] getMessage() {
+        return mMessage;
+    }
+
+    /** @return The time (from System.nanoTime()) the command was added to the queue. */
+    long getEnqueuedNanos() {
+        return mEnqueuedNanos;
+    }
+
+    /** @return The time (from System.nanoTime()) the command was written or 0 if it wasn't. */
+    long getWrittenNanos() {
+        return mWrittenNanos;
+    }
+
+    /** @param writtenNanos The time (from System.nanoTime()) the command was written. */
+    void setWrittenNanos(long writtenNanos) {
+        mWrittenNanos = writtenNanos;
+    }
+
+    /**
+     * Count the command being handed to a new connection.
+     * @return The number of times it has been, this time included.
+     */
+    int incrementHandOffCount() {
+        return ++mHandOffCount;
+    }
+
+    /** @return Whether this is a ping rather than a change to the signal's state. */
+    boolean isPing() {
+        return mIsPing;
+    }
+
+    /** @return Completed once it's known what happened to the command or null if untracked. */
+    CompletableFuture<DeliveryResult> getDelivery() {
+        return mDelivery;
+    }
+
+    /**
+     * Report what happened to the command if anything is waiting to find out. Only the first
+     * result reported counts.
+     * @param result What happened to the command.
+     */
+    void complete(DeliveryResult result) {
+        if (mDelivery != null) mDelivery.complete(result);
+    }
+}
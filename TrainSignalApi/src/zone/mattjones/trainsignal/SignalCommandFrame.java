@@ -0,0 +1,102 @@
+/**
+ * File: SignalCommandFrame.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: A version 1 COMMAND frame read from a request body, as sent to the batch and frame APIs.
+ *       Frames without a signal ID are for the default signal, as they would be on a signal's
+ *       own connection.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import zone.mattjones.trainsignal.TrainSignalMessage.MessageType;
+
+final class SignalCommandFrame {
+    /** The sequence number the client gave the command. */
+    private final int mSequence;
+
+    /** The ID of the signal to change. */
+    private final String mSignalId;
+
+    /** The aspect to change the signal to. */
+    private final SignalAspect mAspect;
+
+    /**
+     * @param sequence The sequence number the client gave the command.
+     * @param signalId The ID of the signal to change.
+     * @param aspect The aspect to change the signal to.
+     */
+    private SignalCommandFrame(int sequence, String signalId, SignalAspect aspect) {
+        mSequence = sequence;
+        mSignalId = signalId;
+        mAspect = aspect;
+    }
+
+    /** @return The sequence number the client gave the command. */
+    int getSequence() {
+        return mSequence;
+    }
+
+    /** @return The ID of the signal to change. */
+    String getSignalId() {
+        return mSignalId;
+    }
+
+    /** @return The aspect to change the signal to. */
+    SignalAspect getAspect() {
+        return mAspect;
+    }
+
+    /**
+     * Parse version 1 COMMAND frames sent back to back. Every frame counts towards the limit,
+     * even one repeating a signal, so a body can't keep the request decoding forever.
+     * @param in The request body.
+     * @param maxFrames The most frames the body may hold.
+     * @return The commands in the order they were sent.
+     * @throws IllegalArgumentException If the body is malformed or holds too many frames.
+     */
+    static List<SignalCommandFrame> parseAll(InputStream in, int maxFrames) {
+        List<SignalCommandFrame> frames = new ArrayList<>();
+        SignalFrameDecoder decoder = new SignalFrameDecoder();
+        ReadableByteChannel channel = Channels.newChannel(in);
+        try {
+            boolean open = true;
+            while (open) {
+                open = decoder.read(channel);
+                while (decoder.nextMessage()) {
+                    if (decoder.getVersion() != TrainSignalMessage.PROTOCOL_VERSION
+                            || decoder.getType() != MessageType.COMMAND
+                            || decoder.getPayloadLength() < 1) {
+                        throw new IllegalArgumentException("Expected a COMMAND frame.");
+                    }
+                    SignalAspect aspect = SignalAspect.fromStateByte(decoder.getPayloadByte(0));
+                    if (aspect == null) {
+                        throw new IllegalArgumentException("Unknown signal state.");
+                    }
+                    String signalId = decoder.getSignalId();
+                    if (signalId == null) signalId = TrainSignalMessage.DEFAULT_SIGNAL_ID;
+                    if (!TrainSignalMessage.isValidSignalId(signalId)) {
+                        throw new IllegalArgumentException("Invalid signal ID.");
+                    }
+                    frames.add(new SignalCommandFrame(decoder.getSequence(), signalId, aspect));
+                    if (frames.size() > maxFrames) {
+                        throw new IllegalArgumentException("Body exceeded " + maxFrames
+                                + " frames.");
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            // The decoder reports malformed frames as I/O errors.
+            throw new IllegalArgumentException(ex.getMessage());
+        }
+        if (decoder.hasUnconsumedBytes()) throw new IllegalArgumentException("Truncated frame.");
+        return frames;
+    }
+}
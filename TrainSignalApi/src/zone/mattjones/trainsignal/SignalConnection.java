@@ -0,0 +1,443 @@
+/**
+ * File: SignalConnection.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: A single socket connection from a signal. With the selector based handler the socket
+ *       is non-blocking and this is only ever touched by the selector thread. With the virtual
+ *       thread server the socket is blocking and this is only touched while holding its lock.
+ *       The heartbeat thread only reads the volatile fields and marks a connection dead; the
+ *       owner closes it the next time it flushes.
+ *
+ *       Messages are pipelined: up to a window's worth of messages can be written before the
+ *       first is acknowledged. Every message written on the connection gets the next sequence
+ *       number. The signal processes messages in order, so each ack received is matched to the
+ *       oldest unacknowledged message; version 1 acks must also carry its sequence number.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jdk.net.ExtendedSocketOptions;
+
+import zone.mattjones.trainsignal.SignalServer.DeliveryResult;
+import zone.mattjones.trainsignal.TrainSignalMessage.MessageType;
+
+class SignalConnection {
+    /** The maximum amount of time to wait for an ack from the signal in ms. */
+    private static final int ACK_TIMEOUT_MS = 2000;
+
+    /**
+     * The amount of time the signal spends physically changing after it acks a message before it
+     * reads the next one in ms.
+     */
+    private static final int SIGNAL_SETTLE_MS = 2500;
+
+    /** How long to wait for a heartbeat to be answered before there's a round trip measured. */
+    private static final long DEFAULT_HEARTBEAT_TIMEOUT_MS = ACK_TIMEOUT_MS;
+
+    /** The shortest time to wait for a heartbeat to be answered in ms. */
+    private static final long MIN_HEARTBEAT_TIMEOUT_MS = 500;
+
+    /** The longest time to wait for a heartbeat to be answered in ms. */
+    private static final long MAX_HEARTBEAT_TIMEOUT_MS = 5000;
+
+    /** How long a socket can be idle before the OS starts sending keepalive probes in s. */
+    private static final int KEEPALIVE_IDLE_S = 5;
+
+    /** The time between keepalive probes in s. */
+    private static final int KEEPALIVE_INTERVAL_S = 1;
+
+    /** The number of unanswered keepalive probes before the OS gives up on the socket. */
+    private static final int KEEPALIVE_COUNT = 3;
+
+    /** The socket connected to the signal. */
+    private final SocketChannel mChannel;
+
+    /** The key registering the socket with the handler's selector or null if it's blocking. */
+    private final SelectionKey mKey;
+
+    /** Splits the bytes read from the signal into messages. */
+    private final SignalFrameDecoder mDecoder;
+
+    /** Messages waiting to be written to the socket. This is always left in "put" mode. */
+    private final ByteBuffer mWriteBuffer;
+
+    /** Ring buffer of messages written to the signal that haven't been acknowledged yet. */
+    private final SignalCommand[] mInFlightMessages;
+
+    /** The time (ms) each in-flight message was written. Parallel to mInFlightMessages. */
+    private final long[] mInFlightSentMs;
+
+    /** The index of the oldest in-flight message. */
+    private int mInFlightHead;
+
+    /** The number of in-flight messages. */
+    private int mInFlightCount;
+
+    /**
+     * The number of in-flight messages that are state commands rather than pings. Only changed
+     * by the owner, but read by the heartbeat thread.
+     */
+    private volatile int mInFlightCommandCount;
+
+    /** The sequence number the next message written will have. */
+    private int mNextSequence;
+
+    /** The time (ms) the last ack was received from the signal. */
+    private long mLastAckMs;
+
+    /** The session this connection is bound to or null if the signal hasn't been identified. */
+    private SignalSession mSession;
+
+    /** The protocol version to write to the signal in; 0 for legacy messages. */
+    private int mProtocolVersion;
+
+    /** The time (ms) a message was last received from the signal. */
+    private volatile long mLastReadMs;
+
+    /** The smoothed round trip time to the signal in ns or 0 if none has been measured. */
+    private volatile long mSmoothedRttNanos;
+
+    /** The mean deviation of the round trip time in ns. */
+    private volatile long mRttVarianceNanos;
+
+    /** The time (ms) an unanswered heartbeat was sent or 0. Only used by the heartbeat thread. */
+    private long mHeartbeatSentMs;
+
+    /** Heartbeat timeouts missed in a row. Only used by the heartbeat thread. */
+    private int mMissedHeartbeats;
+
+    /**
+     * The time (ms) by which the signal must identify itself or ack the oldest in-flight message,
+     * or 0 if nothing is expected from the signal.
+     */
+    private long mDeadlineMs;
+
+    /** Whether the signal stopped answering and the owner should close the connection. */
+    private volatile boolean mDead;
+
+    /** Whether close() has been called, so in-flight messages are only dealt with once. */
+    private final AtomicBoolean mClosed;
+
+    /**
+     * @param channel The socket connected to the signal.
+     * @param key The key registering the socket with the handler's selector or null if the socket
+     *            is blocking.
+     * @param ackWindow The number of messages that can be waiting on an ack at once.
+     */
+    SignalConnection(SocketChannel channel, SelectionKey key, int ackWindow) {
+        mChannel = channel;
+        mKey = key;
+        mDecoder = new SignalFrameDecoder();
+        // Leave room for one extra message so acks for the signal's pings always fit.
+        mWriteBuffer = ByteBuffer.allocate(
+                (ackWindow + 1) * SignalFrameDecoder.MAX_MESSAGE_SIZE_BYTES);
+        mInFlightMessages = new SignalCommand[ackWindow];
+        mInFlightSentMs = new long[ackWindow];
+        mClosed = new AtomicBoolean();
+    }
+
+    /**
+     * Set up a newly accepted socket. Besides turning off Nagle, keepalive probes are tuned down
+     * from the OS default of hours so a signal that lost power mid-conversation is noticed by the
+     * kernel within seconds even if the server has nothing to say to it.
+     * @param channel The socket connected to the signal.
+     * @throws IOException
+     */
+    static void configureSocket(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        // Not every platform lets these be set per socket; the heartbeat still covers those.
+        if (channel.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPIDLE)) {
+            channel.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, KEEPALIVE_IDLE_S);
+            channel.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL, KEEPALIVE_INTERVAL_S);
+            channel.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, KEEPALIVE_COUNT);
+        }
+    }
+
+    /** @return The session this connection is bound to or null if it hasn't been identified. */
+    SignalSession getSession() {
+        return mSession;
+    }
+
+    /** @param session The session this connection is bound to. */
+    void setSession(SignalSession session) {
+        mSession = session;
+    }
+
+    /** @return The time (ms) the signal needs to respond by or 0 if nothing is expected. */
+    long getDeadlineMs() {
+        return mDeadlineMs;
+    }
+
+    /**
+     * Every change to the deadline goes through here, so servers can override this to track it.
+     * @param deadlineMs The time (ms) the signal needs to respond by or 0 for no deadline.
+     */
+    void setDeadlineMs(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+    }
+
+    /** @return The protocol version written to the signal; 0 for legacy messages. */
+    int getProtocolVersion() {
+        return mProtocolVersion;
+    }
+
+    /** @param version The protocol version to write to the signal in; 0 for legacy messages. */
+    void setProtocolVersion(int version) {
+        mProtocolVersion = version;
+    }
+
+    /** @return The time (ms) a message was last received from the signal. */
+    long getLastReadMs() {
+        return mLastReadMs;
+    }
+
+    /** @param nowMs The time (ms) a message was received from the signal. */
+    void setLastReadMs(long nowMs) {
+        mLastReadMs = nowMs;
+    }
+
+    /**
+     * Fold a message's round trip time into the running estimate, the same way TCP does.
+     * @param rttNanos The round trip time in ns.
+     */
+    void recordRoundTrip(long rttNanos) {
+        long smoothed = mSmoothedRttNanos;
+        if (smoothed == 0) {
+            mSmoothedRttNanos = rttNanos;
+            mRttVarianceNanos = rttNanos / 2;
+            return;
+        }
+        mRttVarianceNanos += (Math.abs(rttNanos - smoothed) - mRttVarianceNanos) / 4;
+        mSmoothedRttNanos = smoothed + (rttNanos - smoothed) / 8;
+    }
+
+    /** @return The smoothed round trip time to the signal in ms or 0 if none has been measured. */
+    long getSmoothedRttMs() {
+        return TimeUnit.NANOSECONDS.toMillis(mSmoothedRttNanos);
+    }
+
+    /** @return How long to wait for a heartbeat to be answered in ms, based on past round trips. */
+    long getHeartbeatTimeoutMs() {
+        long smoothed = mSmoothedRttNanos;
+        if (smoothed == 0) return DEFAULT_HEARTBEAT_TIMEOUT_MS;
+        long timeoutMs = TimeUnit.NANOSECONDS.toMillis(smoothed + 4 * mRttVarianceNanos);
+        return Math.min(MAX_HEARTBEAT_TIMEOUT_MS, Math.max(MIN_HEARTBEAT_TIMEOUT_MS, timeoutMs));
+    }
+
+    /** @return The time (ms) an unanswered heartbeat was sent or 0. */
+    long getHeartbeatSentMs() {
+        return mHeartbeatSentMs;
+    }
+
+    /**
+     * @param sentMs The time (ms) a heartbeat was sent or 0 once it's been answered. Also resets
+     *               the missed count when it's answered.
+     */
+    void setHeartbeatSentMs(long sentMs) {
+        mHeartbeatSentMs = sentMs;
+        if (sentMs == 0) mMissedHeartbeats = 0;
+    }
+
+    /** @return The number of heartbeat timeouts missed in a row, including this one. */
+    int missHeartbeat() {
+        return ++mMissedHeartbeats;
+    }
+
+    /** Mark the connection as dead so its owner closes it. Safe from any thread. */
+    void markDead() {
+        mDead = true;
+    }
+
+    /** @return Whether the connection has been marked dead and should be closed. */
+    boolean isDead() {
+        return mDead;
+    }
+
+    /** @return Whether the socket is still open. */
+    boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    /** @return Whether there is room in the window to send another message. */
+    boolean canSend() {
+        return mInFlightCount < mInFlightMessages.length
+                && mWriteBuffer.remaining() >= 2 * SignalFrameDecoder.MAX_MESSAGE_SIZE_BYTES;
+    }
+
+    /**
+     * @return Whether a state command is waiting on an ack. The signal can only act on one at a
+     *         time, so later ones are held back (and coalesced) until it's done.
+     */
+    boolean hasCommandInFlight() {
+        return mInFlightCommandCount > 0;
+    }
+
+    /**
+     * Read whatever is available from the socket into the decoder.
+     * @return Whether the connection is still open.
+     */
+    boolean read() throws IOException {
+        return mDecoder.read(mChannel);
+    }
+
+    /** @return The decoder holding the messages read from the signal. */
+    SignalFrameDecoder getDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * Add a message to the write buffer and track it as in-flight. Only call this if
+     * {@link #canSend()} is true; the message isn't actually written until {@link #flush()}.
+     * @param message The message to send.
+     * @param nowMs The current time in ms.
+     * @return The sequence number of the message.
+     */
+    int send(SignalCommand message, long nowMs) {
+        int sequence = mNextSequence++;
+        byte[] bytes = message.getMessage();
+        if (mProtocolVersion == 0) {
+            mWriteBuffer.put(bytes);
+        } else if (TrainSignalMessage.isAckMessage(bytes)) {
+            TrainSignalMessage.writeFrame(mWriteBuffer, MessageType.PING, sequence,
+                    mSession.getSignalIdBytes(), null, 0, 0);
+        } else {
+            TrainSignalMessage.writeFrame(mWriteBuffer, MessageType.COMMAND, sequence,
+                    mSession.getSignalIdBytes(), bytes, 0, 1);
+        }
+
+        int index = (mInFlightHead + mInFlightCount) % mInFlightMessages.length;
+        mInFlightMessages[index] = message;
+        mInFlightSentMs[index] = nowMs;
+        message.setWrittenNanos(System.nanoTime());
+        mInFlightCount++;
+        if (!message.isPing()) {
+            mInFlightCommandCount++;
+            if (mInFlightCommandCount == 1) updateAckDeadline();
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Add an ack for a ping from the signal to the write buffer. This doesn't use up any of the
+     * window. The ack isn't actually written until {@link #flush()}.
+     * @param sequence The sequence number of the signal's ping.
+     */
+    void sendAck(int sequence) throws IOException {
+        if (mWriteBuffer.remaining() < SignalFrameDecoder.MAX_MESSAGE_SIZE_BYTES) {
+            throw new IOException("Signal isn't reading from the socket!");
+        }
+        TrainSignalMessage.writeFrame(mWriteBuffer, MessageType.ACK, sequence,
+                mSession.getSignalIdBytes(), null, 0, 0);
+    }
+
+    /** Write as much of the write buffer as the socket will take. */
+    void flush() throws IOException {
+        mWriteBuffer.flip();
+        try {
+            mChannel.write(mWriteBuffer);
+        } finally {
+            mWriteBuffer.compact();
+        }
+        // A blocking socket always takes everything.
+        if (mKey == null) return;
+
+        // If the socket couldn't take everything, wait for it to become writable again.
+        if (mWriteBuffer.position() > 0) {
+            mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Handle an acknowledgement from the signal by retiring the oldest in-flight message.
+     * @param nowMs The current time in ms.
+     * @param sequence The sequence number the ack carried or -1 for a legacy ack.
+     * @return The message that was acknowledged or null if nothing was waiting on an ack.
+     */
+    SignalCommand onAck(long nowMs, int sequence) throws IOException {
+        mLastAckMs = nowMs;
+        if (mInFlightCount == 0) return null;
+
+        int expected = (mNextSequence - mInFlightCount) & 0xFFFF;
+        if (sequence >= 0 && sequence != expected) {
+            throw new IOException("Expected ack for " + expected + " but got " + sequence + "!");
+        }
+
+        SignalCommand message = mInFlightMessages[mInFlightHead];
+        mInFlightMessages[mInFlightHead] = null;
+        mInFlightHead = (mInFlightHead + 1) % mInFlightMessages.length;
+        mInFlightCount--;
+        if (!message.isPing()) mInFlightCommandCount--;
+        updateAckDeadline();
+
+        return message;
+    }
+
+    /**
+     * Set the deadline for the oldest in-flight state command. A command written while the
+     * signal was still busy with the previous one gets the signal's settle time added to its
+     * timeout. Pings don't get a deadline here; the heartbeat allows a few of those to be missed
+     * before giving up on the signal.
+     */
+    private void updateAckDeadline() {
+        for (int i = 0; i < mInFlightCount; i++) {
+            int index = (mInFlightHead + i) % mInFlightMessages.length;
+            if (!mInFlightMessages[index].isPing()) {
+                long startMs = Math.max(mInFlightSentMs[index], mLastAckMs + SIGNAL_SETTLE_MS);
+                setDeadlineMs(startMs + ACK_TIMEOUT_MS);
+                return;
+            }
+        }
+        setDeadlineMs(0);
+    }
+
+    /** Close the socket, ignoring any errors. Anything waiting on in-flight messages is told. */
+    void close() {
+        if (!mClosed.compareAndSet(false, true)) return;
+        for (int i = 0; i < mInFlightCount; i++) {
+            int index = (mInFlightHead + i) % mInFlightMessages.length;
+            SignalCommand message = mInFlightMessages[index];
+            if (message == null || message.isPing()) continue;
+            // Whatever the signal was last asked to show still needs to reach it, so the next
+            // connection for the signal picks the command up rather than waiting on a new one.
+            if (mSession == null || !mSession.handOff(message)) {
+                message.complete(DeliveryResult.DROPPED);
+            }
+        }
+        closeSocket();
+    }
+
+    /**
+     * Close just the socket, ignoring any errors. Unlike close() this is safe from any thread;
+     * whatever the owner is blocked on fails so it lets go of the connection.
+     */
+    void closeSocket() {
+        if (mKey != null) mKey.cancel();
+        try {
+            mChannel.close();
+        } catch (IOException ex) {
+            SignalLog.error(mSession != null ? mSession.getSignalId() : null,
+                    "Failed to close signal socket: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.valueOf(mChannel.getRemoteAddress());
+        } catch (IOException ex) {
+            return "<closed>";
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * File: SignalEventsApi.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Pushes signal state changes to clients as server-sent events so every console showing a
+ *       signal stays in sync without polling. The first event holds the current state of every
+ *       signal asked for, then an event is sent each time a signal acknowledges a new aspect or
+ *       connects or disconnects. Connect with an EventSource to /events, optionally with
+ *       ?signal=ID to only hear about one signal.
+ *
+ *       Responses are written with non-blocking I/O. Each client buffers a limited number of
+ *       events; a client that falls further behind than that is disconnected (an EventSource
+ *       will reconnect and get a fresh snapshot) rather than holding anything else up.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+@WebServlet(name = "SignalEventsApi", urlPatterns = "/events", loadOnStartup = 2,
+        asyncSupported = true)
+public class SignalEventsApi extends HttpServlet {
+    private static final long serialVersionUID = 20261016L;
+
+    /** The number of events a client can fall behind by before it's disconnected. */
+    private static final int CLIENT_BUFFER_SIZE = 32;
+
+    public SignalEventsApi() {}
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        SignalServer server = (SignalServer) getServletContext().getAttribute(
+                TrainSignalApi.SERVER_ATTRIBUTE);
+        if (server == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        String signalId = request.getParameter("signal");
+        if (signalId != null && !TrainSignalMessage.isValidSignalId(signalId)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext context = request.startAsync();
+        context.setTimeout(0);
+        EventClient client = new EventClient(context, signalId, server.getStateBroadcaster());
+        context.addListener(client);
+        response.getOutputStream().setWriteListener(client);
+        server.getStateBroadcaster().subscribe(client);
+    }
+
+    /** A single client's event stream. */
+    private static final class EventClient
+            implements SignalStateBroadcaster.Subscriber, WriteListener, AsyncListener {
+        /** The client's request. */
+        private final AsyncContext mContext;
+
+        /** The ID of the signal the client wants to hear about or null for every signal. */
+        private final String mSignalId;
+
+        /** The broadcaster the client is subscribed to. */
+        private final SignalStateBroadcaster mBroadcaster;
+
+        /** Events waiting to be written to the client. */
+        private final ArrayBlockingQueue<byte[]> mEvents;
+
+        /** Whether the stream has been closed. */
+        private final AtomicBoolean mClosed;
+
+        /** Whether something has been written since the output was last flushed. */
+        private boolean mNeedsFlush;
+
+        /**
+         * @param context The client's request.
+         * @param signalId The ID of the signal to hear about or null for every signal.
+         * @param broadcaster The broadcaster the client will subscribe to.
+         */
+        EventClient(AsyncContext context, String signalId, SignalStateBroadcaster broadcaster) {
+            mContext = context;
+            mSignalId = signalId;
+            mBroadcaster = broadcaster;
+            mEvents = new ArrayBlockingQueue<>(CLIENT_BUFFER_SIZE);
+            mClosed = new AtomicBoolean();
+        }
+
+        @Override
+        public String getSignalId() {
+            return mSignalId;
+        }
+
+        @Override
+        public boolean offer(byte[] event) {
+            if (mClosed.get()) return false;
+            if (!mEvents.offer(event)) {
+                SignalLog.warning(mSignalId, "Event client fell too far behind, disconnecting.");
+                close();
+                return false;
+            }
+            write();
+            return true;
+        }
+
+        @Override
+        public void onWritePossible() {
+            write();
+        }
+
+        /** Write as many buffered events as the output will take without blocking. */
+        private synchronized void write() {
+            if (mClosed.get()) return;
+            try {
+                ServletOutputStream out = mContext.getResponse().getOutputStream();
+                while (out.isReady()) {
+                    byte[] event = mEvents.poll();
+                    if (event != null) {
+                        out.write(event);
+                        mNeedsFlush = true;
+                    } else if (mNeedsFlush) {
+                        mNeedsFlush = false;
+                        out.flush();
+                    } else {
+                        return;
+                    }
+                }
+            } catch (IOException | IllegalStateException ex) {
+                close();
+            }
+        }
+
+        /** Stop sending events and end the response. */
+        private void close() {
+            if (!mClosed.compareAndSet(false, true)) return;
+            mBroadcaster.unsubscribe(this);
+            try {
+                mContext.complete();
+            } catch (IllegalStateException ex) {
+                // The request is already over.
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {}
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * File: SignalFrameApi.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Binary API for machine clients such as automation controllers, which send commands at a
+ *       high rate and don't need JSON. POST to /frames with a body of version 1 COMMAND frames
+ *       (Content-Type: application/octet-stream), the same frames a signal would be sent. The
+ *       response is an ACK frame for each command with the command's sequence number and signal
+ *       ID and a one byte result (see TrainSignalMessage), in the order the commands were sent.
+ *       Add ?wait=ack to respond once every signal has acked its command.
+ *
+ *       Responses always have a Content-Length and the streams are never closed, so a client
+ *       can keep its connection open and pipeline requests. The whole body is validated before
+ *       anything is sent, so a malformed request changes no signals.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebInitParam;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import zone.mattjones.trainsignal.SignalServer.DeliveryResult;
+import zone.mattjones.trainsignal.TrainSignalMessage.MessageType;
+
+@WebServlet(name = "SignalFrameApi", urlPatterns = "/frames", loadOnStartup = 2,
+        asyncSupported = true,
+        initParams = {@WebInitParam(name = "ackWaitTimeoutMs", value = "10000")})
+public class SignalFrameApi extends HttpServlet {
+    private static final long serialVersionUID = 20261016L;
+
+    /** The content type of requests and responses. */
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    /** The init param for how long a request with wait=ack waits for the acks in ms. */
+    private static final String ACK_WAIT_TIMEOUT_PARAM = "ackWaitTimeoutMs";
+
+    /** The default time a request with wait=ack waits for the acks in ms. */
+    private static final int DEFAULT_ACK_WAIT_TIMEOUT_MS = 10000;
+
+    /** The result payload for each delivery result, indexed by ordinal. Never modified. */
+    private static final byte[][] DELIVERY_PAYLOADS;
+
+    /** The result payload for a command queued without waiting. Never modified. */
+    private static final byte[] QUEUED_PAYLOAD = {TrainSignalMessage.ACK_RESULT_QUEUED};
+
+    /** The result payload for a command that couldn't be queued. Never modified. */
+    private static final byte[] REJECTED_PAYLOAD = {TrainSignalMessage.ACK_RESULT_REJECTED};
+
+    static {
+        DeliveryResult[] results = DeliveryResult.values();
+        DELIVERY_PAYLOADS = new byte[results.length][];
+        for (DeliveryResult result : results) {
+            DELIVERY_PAYLOADS[result.ordinal()] = new byte[] {(byte) result.ordinal()};
+        }
+    }
+
+    /** How long a request with wait=ack waits for the acks in ms. */
+    private int mAckWaitTimeoutMs;
+
+    public SignalFrameApi() {}
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        mAckWaitTimeoutMs = TrainSignalApi.getIntParameter(config, ACK_WAIT_TIMEOUT_PARAM,
+                DEFAULT_ACK_WAIT_TIMEOUT_MS);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        SignalServer server = (SignalServer) getServletContext().getAttribute(
+                TrainSignalApi.SERVER_ATTRIBUTE);
+        if (server == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        String contentType = request.getContentType();
+        if (contentType == null || !contentType.startsWith(CONTENT_TYPE)) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+
+        List<SignalCommandFrame> commands;
+        try {
+            commands = SignalCommandFrame.parseAll(request.getInputStream(),
+                    SignalBatchApi.MAX_BATCH_SIZE);
+            if (commands.isEmpty()) throw new IllegalArgumentException("No commands in body.");
+        } catch (IllegalArgumentException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+
+        Set<String> signalIds = new LinkedHashSet<>();
+        for (SignalCommandFrame command : commands) signalIds.add(command.getSignalId());
+        // Estimate before queueing so the new commands don't count as the signals' current ones.
+        TrainSignalApi.setTimeToDisplay(response, server.estimateTimeToDisplayMs(signalIds));
+
+        if ("ack".equals(request.getParameter("wait"))) {
+            List<CompletableFuture<DeliveryResult>> deliveries = new ArrayList<>();
+            for (SignalCommandFrame command : commands) {
+                deliveries.add(server.addTrackedMessage(command.getSignalId(),
+                        command.getAspect()));
+            }
+            server.getMetrics().getRequestToEnqueue().recordSince(startNanos);
+            TrainSignalApi.respondWhenDelivered(request, deliveries, mAckWaitTimeoutMs,
+                    (out) -> writeResponse(out, buildDeliveryResponse(commands, deliveries)));
+            return;
+        }
+
+        ByteBuffer out = allocateResponse(commands.size());
+        for (SignalCommandFrame command : commands) {
+            boolean queued = server.addMessage(command.getSignalId(), command.getAspect());
+            writeAck(out, command, queued ? QUEUED_PAYLOAD : REJECTED_PAYLOAD);
+        }
+        server.getMetrics().getRequestToEnqueue().recordSince(startNanos);
+        writeResponse(response, out);
+    }
+
+    /**
+     * @param commands The commands in the order they were sent.
+     * @param deliveries What happened to each command, null for ones that couldn't be queued.
+     *                   Every future must be complete.
+     * @return The ACK frames.
+     */
+    private static ByteBuffer buildDeliveryResponse(List<SignalCommandFrame> commands,
+            List<CompletableFuture<DeliveryResult>> deliveries) {
+        ByteBuffer out = allocateResponse(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            CompletableFuture<DeliveryResult> delivery = deliveries.get(i);
+            writeAck(out, commands.get(i), delivery == null ? REJECTED_PAYLOAD
+                    : DELIVERY_PAYLOADS[delivery.join().ordinal()]);
+        }
+        return out;
+    }
+
+    /**
+     * @param commandCount The number of commands being answered.
+     * @return A buffer big enough for an ACK for each of them.
+     */
+    private static ByteBuffer allocateResponse(int commandCount) {
+        return ByteBuffer.allocate(commandCount * (TrainSignalMessage.FRAME_HEADER_SIZE
+                + TrainSignalMessage.MAX_SIGNAL_ID_LENGTH + 1));
+    }
+
+    /**
+     * @param out The response being built.
+     * @param command The command being answered.
+     * @param payload The result payload.
+     */
+    private static void writeAck(ByteBuffer out, SignalCommandFrame command, byte[] payload) {
+        // Signal IDs are validated, so they're always ASCII.
+        TrainSignalMessage.writeFrame(out, MessageType.ACK, command.getSequence(),
+                command.getSignalId().getBytes(StandardCharsets.US_ASCII), payload, 0,
+                payload.length);
+    }
+
+    /**
+     * @param response The response to write to.
+     * @param out The ACK frames.
+     */
+    private static void writeResponse(HttpServletResponse response, ByteBuffer out)
+            throws IOException {
+        response.setContentType(CONTENT_TYPE);
+        response.setContentLength(out.position());
+        response.getOutputStream().write(out.array(), 0, out.position());
+    }
+}
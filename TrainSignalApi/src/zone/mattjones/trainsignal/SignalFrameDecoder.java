@@ -0,0 +1,232 @@
+/**
+ * File: SignalFrameDecoder.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Splits the bytes read from a signal into messages. Both legacy ('!' terminated) messages
+ *       and version 1 (length-prefixed) frames are understood, and either can arrive split
+ *       across reads or several to a read. The decoder reuses a single buffer for the life of
+ *       the connection and messages are inspected in place, so reading an ack doesn't allocate
+ *       anything.
+ */
+
+package zone.mattjones.trainsignal;
+
+import zone.mattjones.trainsignal.TrainSignalMessage.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+class SignalFrameDecoder {
+    /** The most we're willing to read as a single legacy message from the signal. */
+    static final int MAX_MESSAGE_SIZE_BYTES = 64;
+
+    /** The size of the read buffer. Large enough for a couple of full size frames. */
+    private static final int BUFFER_SIZE = 2 * TrainSignalMessage.MAX_FRAME_SIZE;
+
+    /** Bytes read from the signal. Always left in "put" mode; data is in [0, position). */
+    private final ByteBuffer mBuffer;
+
+    /** The index of the first byte that hasn't been returned as part of a message. */
+    private int mConsumed;
+
+    /** The index up to which the buffer has been searched for a terminating character. */
+    private int mScanned;
+
+    /** The index of the current message in the buffer. */
+    private int mMessageOffset;
+
+    /** The length of the current message. */
+    private int mMessageLength;
+
+    /** The protocol version of the current message; 0 for a legacy message. */
+    private int mMessageVersion;
+
+    /** Default constructor. */
+    SignalFrameDecoder() {
+        mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Read whatever is available from a channel into the buffer. This invalidates the current
+     * message.
+     * @param channel The channel to read from.
+     * @return Whether the channel is still open.
+     */
+    boolean read(ReadableByteChannel channel) throws IOException {
+        // Shift any partial message to the front of the buffer to make room.
+        if (mConsumed > 0) {
+            mBuffer.flip();
+            mBuffer.position(mConsumed);
+            mBuffer.compact();
+            mScanned -= mConsumed;
+            mConsumed = 0;
+        }
+        mMessageLength = 0;
+
+        if (!mBuffer.hasRemaining()) {
+            throw new IOException("Message from signal exceeded " + BUFFER_SIZE + " bytes!");
+        }
+        return channel.read(mBuffer) >= 0;
+    }
+
+    /**
+     * Advance to the next complete message in the buffer.
+     * @return Whether there was a complete message.
+     */
+    boolean nextMessage() throws IOException {
+        mMessageLength = 0;
+        int end = mBuffer.position();
+        if (mConsumed >= end) return false;
+
+        int first = mBuffer.get(mConsumed) & 0xFF;
+        if ((first & TrainSignalMessage.FRAME_MARKER) != 0) {
+            return nextFrame(first & ~TrainSignalMessage.FRAME_MARKER, end);
+        }
+
+        for (int i = Math.max(mScanned, mConsumed); i < end; i++) {
+            if (mBuffer.get(i) == TrainSignalMessage.MESSAGE_TERMINATING_CHAR) {
+                setMessage(0, mConsumed, i + 1 - mConsumed);
+                return true;
+            }
+        }
+        mScanned = end;
+        if (end - mConsumed > MAX_MESSAGE_SIZE_BYTES) {
+            throw new IOException("Message from signal exceeded " + MAX_MESSAGE_SIZE_BYTES
+                    + " bytes!");
+        }
+        return false;
+    }
+
+    /**
+     * Advance to the version 1 frame at the start of the unconsumed bytes if it's complete.
+     * @param version The version from the frame's marker byte.
+     * @param end The end of the data in the buffer.
+     * @return Whether the frame was complete.
+     */
+    private boolean nextFrame(int version, int end) throws IOException {
+        if (version != TrainSignalMessage.PROTOCOL_VERSION) {
+            throw new IOException("Unsupported protocol version " + version + "!");
+        }
+        if (end - mConsumed < 2) return false;
+
+        int length = 2 + (mBuffer.get(mConsumed + 1) & 0xFF);
+        if (length < TrainSignalMessage.FRAME_HEADER_SIZE) {
+            throw new IOException("Malformed frame from signal!");
+        }
+        if (end - mConsumed < length) return false;
+
+        int idLength = mBuffer.get(mConsumed + 5) & 0xFF;
+        if (idLength > TrainSignalMessage.MAX_SIGNAL_ID_LENGTH
+                || TrainSignalMessage.FRAME_HEADER_SIZE + idLength > length) {
+            throw new IOException("Malformed frame from signal!");
+        }
+
+        setMessage(version, mConsumed, length);
+        return true;
+    }
+
+    /**
+     * Make a range of the buffer the current message and consume it.
+     * @param version The protocol version of the message.
+     * @param offset The index of the message.
+     * @param length The length of the message.
+     */
+    private void setMessage(int version, int offset, int length) {
+        mMessageVersion = version;
+        mMessageOffset = offset;
+        mMessageLength = length;
+        mConsumed = offset + length;
+        mScanned = mConsumed;
+    }
+
+    /** @return Whether there are bytes that haven't been returned as part of a message. */
+    boolean hasUnconsumedBytes() {
+        return mConsumed < mBuffer.position();
+    }
+
+    /** @return The protocol version of the current message; 0 for a legacy message. */
+    int getVersion() {
+        return mMessageVersion;
+    }
+
+    /** @return The type of a version 1 frame or null for a legacy or unknown message. */
+    MessageType getType() {
+        if (mMessageVersion == 0) return null;
+        return MessageType.fromCode(mBuffer.get(mMessageOffset + 2));
+    }
+
+    /** @return The sequence number of a version 1 frame or -1 for a legacy message. */
+    int getSequence() {
+        if (mMessageVersion == 0) return -1;
+        return mBuffer.getShort(mMessageOffset + 3) & 0xFFFF;
+    }
+
+    /** @return The signal ID in a version 1 frame or null if there isn't one. */
+    String getSignalId() {
+        int idLength = getSignalIdLength();
+        if (idLength == 0) return null;
+
+        byte[] idBytes = new byte[idLength];
+        for (int i = 0; i < idLength; i++) {
+            idBytes[i] = mBuffer.get(mMessageOffset + TrainSignalMessage.FRAME_HEADER_SIZE + i);
+        }
+        return new String(idBytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Check the signal ID of a version 1 frame without allocating.
+     * @param idBytes The ASCII bytes of the expected ID.
+     * @return Whether the frame has no ID or the ID matches.
+     */
+    boolean isSignalIdEmptyOrEqual(byte[] idBytes) {
+        int idLength = getSignalIdLength();
+        if (idLength == 0) return true;
+        if (idLength != idBytes.length) return false;
+        for (int i = 0; i < idLength; i++) {
+            if (mBuffer.get(mMessageOffset + TrainSignalMessage.FRAME_HEADER_SIZE + i)
+                    != idBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return The length of the payload of a version 1 frame. */
+    int getPayloadLength() {
+        if (mMessageVersion == 0) return 0;
+        return mMessageLength - TrainSignalMessage.FRAME_HEADER_SIZE - getSignalIdLength();
+    }
+
+    /**
+     * @param index The index within the payload.
+     * @return The payload byte of a version 1 frame.
+     */
+    byte getPayloadByte(int index) {
+        return mBuffer.get(mMessageOffset + TrainSignalMessage.FRAME_HEADER_SIZE
+                + getSignalIdLength() + index);
+    }
+
+    /** @return Whether the current message is an ack. */
+    boolean isAckMessage() {
+        if (mMessageVersion != 0) return getType() == MessageType.ACK;
+        return TrainSignalMessage.isAckMessage(mBuffer, mMessageOffset, mMessageLength);
+    }
+
+    /** @return The signal ID if the current message is a hello, otherwise null. */
+    String parseHelloMessage() {
+        if (mMessageVersion != 0) {
+            if (getType() != MessageType.HELLO) return null;
+            String signalId = getSignalId();
+            return TrainSignalMessage.isValidSignalId(signalId) ? signalId : null;
+        }
+        return TrainSignalMessage.parseHelloMessage(mBuffer, mMessageOffset, mMessageLength);
+    }
+
+    /** @return The length of the signal ID in a version 1 frame. */
+    private int getSignalIdLength() {
+        if (mMessageVersion == 0) return 0;
+        return mBuffer.get(mMessageOffset + 5) & 0xFF;
+    }
+}
@@ -0,0 +1,459 @@
+/**
+ * File: SignalJournal.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Keeps the aspect every signal was last asked to show (and last acknowledged) on disk so
+ *       it survives the servlet being redeployed or Tomcat restarting. Every accepted command and
+ *       ack is appended to a memory-mapped journal, which costs a few stores into the page cache
+ *       rather than a system call. A background thread periodically (or when the journal is
+ *       filling up) writes a compact snapshot of every signal's state and empties the journal.
+ *       Appends only ever wait on the lock for memory operations; flushing to disk and writing
+ *       snapshots happen outside it.
+ *
+ *       On startup the snapshot is read and the journal replayed on top of it, which takes
+ *       milliseconds even for thousands of signals. The snapshot and journal carry a generation
+ *       number so a journal that was already folded into a newer snapshot is never replayed.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+class SignalJournal implements Runnable {
+    /** The size of the journal file in bytes. */
+    static final int JOURNAL_SIZE = 1024 * 1024;
+
+    /** How often to write a snapshot while commands are being journaled in ms. */
+    static final long SNAPSHOT_INTERVAL_MS = 5 * 60 * 1000;
+
+    /** How often to flush the journal to disk while commands are being journaled in ms. */
+    private static final long FORCE_INTERVAL_MS = 1000;
+
+    /** Identifies a journal file. */
+    private static final int JOURNAL_MAGIC = 0x54534a31; // "TSJ1"
+
+    /** Identifies a snapshot file. */
+    private static final int SNAPSHOT_MAGIC = 0x54535331; // "TSS1"
+
+    /** The size of the journal header: magic and generation. */
+    private static final int JOURNAL_HEADER_SIZE = 12;
+
+    /** Journal record type for a command being accepted. */
+    private static final byte RECORD_COMMAND = 1;
+
+    /** Journal record type for a command being acknowledged. */
+    private static final byte RECORD_ACK = 2;
+
+    /** The journal is compacted early once it's this full. */
+    private static final int COMPACT_THRESHOLD = JOURNAL_SIZE * 3 / 4;
+
+    /** The most recently known aspects for a signal. */
+    static final class RecoveredState {
+        /** The ID of the signal. */
+        final String mSignalId;
+
+        /** The aspect the signal was last asked to show or null. */
+        SignalAspect mDesiredAspect;
+
+        /** The aspect the signal last acknowledged or null. */
+        SignalAspect mAckedAspect;
+
+        /** @param signalId The ID of the signal. */
+        RecoveredState(String signalId) {
+            mSignalId = signalId;
+        }
+    }
+
+    /** The journal file. */
+    private final Path mJournalPath;
+
+    /** The snapshot file. */
+    private final Path mSnapshotPath;
+
+    /** The journal file mapped into memory. */
+    private final MappedByteBuffer mJournal;
+
+    /** The state recovered when the journal was opened, keyed by signal ID. */
+    private final Map<String, RecoveredState> mRecovered;
+
+    /** The thread writing snapshots and flushing the journal. */
+    private final Thread mThread;
+
+    /** Provides the current state of every signal for snapshots. Set once the server is up. */
+    private volatile Supplier<List<SignalState>> mStates;
+
+    /** The generation of the newest snapshot; the journal belongs to it. Guarded by this. */
+    private long mGeneration;
+
+    /** Whether anything has been appended since the journal was last flushed. Guarded by this. */
+    private boolean mDirty;
+
+    /** Whether anything has been appended since the last snapshot. Guarded by this. */
+    private boolean mChangedSinceSnapshot;
+
+    /** Whether the journal has been closed. */
+    private volatile boolean mClosed;
+
+    /**
+     * Open the journal in a directory, recovering whatever state it holds.
+     * @param directory The directory to keep the journal and snapshot in. Created if needed.
+     */
+    SignalJournal(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        mJournalPath = directory.resolve("journal.bin");
+        mSnapshotPath = directory.resolve("snapshot.bin");
+        mRecovered = new LinkedHashMap<>();
+
+        long startNanos = System.nanoTime();
+        mGeneration = readSnapshot();
+        try (FileChannel channel = FileChannel.open(mJournalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            mJournal = channel.map(FileChannel.MapMode.READ_WRITE, 0, JOURNAL_SIZE);
+        }
+        replayJournal();
+        SignalLog.info("Recovered " + mRecovered.size() + " signal state(s) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + "ms.");
+
+        mThread = new Thread(this, "SignalJournal");
+        mThread.setDaemon(true);
+    }
+
+    /** @return The state recovered when the journal was opened. */
+    Collection<RecoveredState> getRecoveredStates() {
+        return mRecovered.values();
+    }
+
+    /**
+     * Start writing snapshots.
+     * @param states Provides the current state of every signal.
+     */
+    void start(Supplier<List<SignalState>> states) {
+        mStates = states;
+        mThread.start();
+    }
+
+    /**
+     * Record a command being accepted for a signal.
+     * @param signalIdBytes The ASCII bytes of the signal's ID.
+     * @param aspect The aspect the signal was asked to show.
+     */
+    void recordCommand(byte[] signalIdBytes, SignalAspect aspect) {
+        append(RECORD_COMMAND, signalIdBytes, aspect);
+    }
+
+    /**
+     * Record a signal acknowledging a command.
+     * @param signalIdBytes The ASCII bytes of the signal's ID.
+     * @param aspect The aspect the signal acknowledged.
+     */
+    void recordAck(byte[] signalIdBytes, SignalAspect aspect) {
+        append(RECORD_ACK, signalIdBytes, aspect);
+    }
+
+    /**
+     * Append a record: the ID length, the ID, the state byte and finally the type. The type is
+     * written last so a record cut short by a crash reads as the end of the journal.
+     * @param type The type of the record.
+     * @param signalIdBytes The ASCII bytes of the signal's ID.
+     * @param aspect The aspect in the record.
+     */
+    private synchronized void append(byte type, byte[] signalIdBytes, SignalAspect aspect) {
+        if (mClosed) return;
+        int length = signalIdBytes.length + 3;
+        if (mJournal.position() + length > JOURNAL_SIZE) {
+            // The snapshot thread is behind. Nothing is lost: the next snapshot is taken from the
+            // live state, which already has this change.
+            LockSupport.unpark(mThread);
+            mChangedSinceSnapshot = true;
+            return;
+        }
+
+        int position = mJournal.position();
+        mJournal.put(position, (byte) signalIdBytes.length);
+        mJournal.duplicate().position(position + 1).put(signalIdBytes);
+        mJournal.put(position + 1 + signalIdBytes.length, aspect.getStateByte());
+        mJournal.put(position + 2 + signalIdBytes.length, type);
+        mJournal.position(position + length);
+        mDirty = true;
+        mChangedSinceSnapshot = true;
+        if (position + length >= COMPACT_THRESHOLD) LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void run() {
+        long nextSnapshotMs = System.currentTimeMillis() + SNAPSHOT_INTERVAL_MS;
+        while (!mClosed) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL_MS));
+            if (mClosed) break;
+
+            long nowMs = System.currentTimeMillis();
+            try {
+                if (nowMs >= nextSnapshotMs || isFillingUp()) {
+                    snapshot();
+                    nextSnapshotMs = nowMs + SNAPSHOT_INTERVAL_MS;
+                } else {
+                    force();
+                }
+            } catch (IOException ex) {
+                SignalLog.error("Failed to write signal state snapshot: " + ex.getMessage());
+            }
+        }
+    }
+
+    /** Write a final snapshot and stop the snapshot thread. */
+    void close() {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+        // Snapshots are written outside the lock, so let any in progress finish first.
+        try {
+            mThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (mStates != null) writeSnapshot(false);
+            mJournal.force();
+        } catch (IOException ex) {
+            SignalLog.error("Failed to write signal state snapshot: " + ex.getMessage());
+        }
+    }
+
+    /** @return Whether the journal is full enough to compact. */
+    private synchronized boolean isFillingUp() {
+        return mJournal.position() >= COMPACT_THRESHOLD;
+    }
+
+    /** Flush anything appended to the journal to disk. */
+    private void force() {
+        synchronized (this) {
+            if (!mDirty) return;
+            mDirty = false;
+        }
+        // Anything appended while this runs is marked dirty again and flushed next time.
+        mJournal.force();
+    }
+
+    /** Write a snapshot if anything has changed and empty the journal. */
+    private void snapshot() throws IOException {
+        writeSnapshot(true);
+    }
+
+    /**
+     * Write a snapshot of every signal's state and drop the journal records it covers. Only the
+     * snapshot thread (or close() once it has stopped) calls this.
+     * @param onlyIfChanged Whether to skip the snapshot if nothing was appended since the last.
+     */
+    private void writeSnapshot(boolean onlyIfChanged) throws IOException {
+        int cut;
+        long generation;
+        synchronized (this) {
+            if (onlyIfChanged && !mChangedSinceSnapshot) return;
+            cut = mJournal.position();
+            generation = mGeneration + 1;
+            mChangedSinceSnapshot = false;
+        }
+
+        // A change to a signal's state is made before it's appended, so states read after the
+        // cut include everything recorded before it. Records after the cut are kept and
+        // replayed on top of the snapshot.
+        try {
+            writeSnapshotFile(generation, mStates.get());
+        } catch (IOException ex) {
+            synchronized (this) {
+                mChangedSinceSnapshot = true;
+            }
+            throw ex;
+        }
+
+        // Only now that the snapshot is safely on disk can the journal start over.
+        synchronized (this) {
+            mGeneration = generation;
+            restartJournal(cut);
+            mDirty = true;
+        }
+        force();
+    }
+
+    /**
+     * @param generation The generation of the snapshot.
+     * @param states The state of every signal.
+     */
+    private void writeSnapshotFile(long generation, List<SignalState> states)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(
+                16 + states.size() * (TrainSignalMessage.MAX_SIGNAL_ID_LENGTH + 3) + 8);
+        buffer.putInt(SNAPSHOT_MAGIC);
+        buffer.putLong(generation);
+        buffer.putInt(states.size());
+        for (SignalState state : states) {
+            byte[] idBytes = state.getSignalId().getBytes(StandardCharsets.US_ASCII);
+            buffer.put((byte) idBytes.length);
+            buffer.put(idBytes);
+            buffer.put(stateByte(state.getDesiredAspect()));
+            buffer.put(stateByte(state.getAckedAspect()));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        Path temp = mSnapshotPath.resolveSibling("snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, mSnapshotPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the snapshot into the recovered states.
+     * @return The generation of the snapshot or 0 if there isn't a valid one.
+     */
+    private long readSnapshot() throws IOException {
+        if (!Files.exists(mSnapshotPath)) return 0;
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(mSnapshotPath));
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, buffer.limit() - 8);
+            if (buffer.getInt() != SNAPSHOT_MAGIC
+                    || buffer.getLong(buffer.limit() - 8) != crc.getValue()) {
+                throw new IOException("Snapshot is corrupt.");
+            }
+            long generation = buffer.getLong();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String signalId = readSignalId(buffer);
+                RecoveredState state = getRecovered(signalId);
+                state.mDesiredAspect = aspect(buffer.get());
+                state.mAckedAspect = aspect(buffer.get());
+            }
+            return generation;
+        } catch (RuntimeException | IOException ex) {
+            SignalLog.error("Ignoring signal state snapshot: " + ex.getMessage());
+            mRecovered.clear();
+            return 0;
+        }
+    }
+
+    /** Apply the journal's records to the recovered states if it belongs to the snapshot. */
+    private void replayJournal() {
+        if (mJournal.getInt(0) != JOURNAL_MAGIC || mJournal.getLong(4) != mGeneration) {
+            // A new journal, or one already folded into the snapshot. Clear all of it.
+            mJournal.position(JOURNAL_SIZE);
+            restartJournal(JOURNAL_SIZE);
+            mJournal.force();
+            return;
+        }
+
+        int position = JOURNAL_HEADER_SIZE;
+        while (position < JOURNAL_SIZE) {
+            int idLength = mJournal.get(position) & 0xFF;
+            int length = idLength + 3;
+            if (idLength == 0 || idLength > TrainSignalMessage.MAX_SIGNAL_ID_LENGTH
+                    || position + length > JOURNAL_SIZE) {
+                break;
+            }
+            byte type = mJournal.get(position + length - 1);
+            if (type != RECORD_COMMAND && type != RECORD_ACK) break;
+
+            byte[] idBytes = new byte[idLength];
+            mJournal.duplicate().position(position + 1).get(idBytes);
+            String signalId = new String(idBytes, StandardCharsets.US_ASCII);
+            SignalAspect aspect = aspect(mJournal.get(position + 1 + idLength));
+            if (aspect != null && TrainSignalMessage.isValidSignalId(signalId)) {
+                RecoveredState state = getRecovered(signalId);
+                if (type == RECORD_COMMAND) {
+                    state.mDesiredAspect = aspect;
+                } else {
+                    state.mAckedAspect = aspect;
+                }
+            }
+            position += length;
+        }
+        mJournal.position(position);
+    }
+
+    /**
+     * Drop the records before a position, moving the rest to the start of the journal, and stamp
+     * it with the current generation. This only touches memory; the caller flushes it to disk.
+     * @param keepFrom The position of the first record to keep.
+     */
+    private void restartJournal(int keepFrom) {
+        int end = Math.max(mJournal.position(), JOURNAL_HEADER_SIZE);
+        keepFrom = Math.max(keepFrom, JOURNAL_HEADER_SIZE);
+        byte[] kept = new byte[end - keepFrom];
+        mJournal.duplicate().position(keepFrom).get(kept);
+        mJournal.duplicate().position(JOURNAL_HEADER_SIZE).put(kept);
+
+        // Zero the rest of what was used so stale records can't be read back after new ones.
+        int keptEnd = JOURNAL_HEADER_SIZE + kept.length;
+        byte[] zeros = new byte[4096];
+        ByteBuffer clear = mJournal.duplicate();
+        clear.position(keptEnd);
+        while (clear.position() < end) {
+            clear.put(zeros, 0, Math.min(zeros.length, end - clear.position()));
+        }
+        mJournal.putInt(0, JOURNAL_MAGIC);
+        mJournal.putLong(4, mGeneration);
+        mJournal.position(keptEnd);
+    }
+
+    /**
+     * @param signalId The ID of a signal.
+     * @return The recovered state for the signal, created if needed.
+     */
+    private RecoveredState getRecovered(String signalId) {
+        return mRecovered.computeIfAbsent(signalId, RecoveredState::new);
+    }
+
+    /**
+     * @param buffer A buffer positioned on a length-prefixed signal ID.
+     * @return The signal ID.
+     */
+    private static String readSignalId(ByteBuffer buffer) throws IOException {
+        int length = buffer.get() & 0xFF;
+        byte[] idBytes = new byte[length];
+        buffer.get(idBytes);
+        String signalId = new String(idBytes, StandardCharsets.US_ASCII);
+        if (!TrainSignalMessage.isValidSignalId(signalId)) {
+            throw new IOException("Invalid signal ID.");
+        }
+        return signalId;
+    }
+
+    /**
+     * @param aspect An aspect or null.
+     * @return The aspect's state byte or 0 for null.
+     */
+    private static byte stateByte(SignalAspect aspect) {
+        return aspect == null ? 0 : aspect.getStateByte();
+    }
+
+    /**
+     * @param stateByte A state byte or 0.
+     * @return The aspect for the state byte or null.
+     */
+    private static SignalAspect aspect(byte stateByte) {
+        return stateByte == 0 ? null : SignalAspect.fromStateByte(stateByte);
+    }
+}
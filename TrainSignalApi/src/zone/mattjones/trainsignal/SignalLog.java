@@ -0,0 +1,378 @@
+/**
+ * File: SignalLog.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: An asynchronous log for the server. Logging a message only copies it into a slot of a
+ *       fixed size ring buffer; a single background thread formats and writes everything to
+ *       stderr, so the threads talking to signals never wait on console I/O. If the buffer is
+ *       full the message is dropped and counted rather than blocking.
+ *
+ *       Each line has the time, the level and, where there is one, the signal the message is
+ *       about: "2026-10-16T12:00:00.000Z [error] signal=north: Failed to write...". Identical
+ *       messages about the same signal are limited to a few per window; the rest are counted and
+ *       reported once the window is over.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+final class SignalLog implements Runnable {
+    /** How important a message is. Messages less important than the log's level are skipped. */
+    enum Level {
+        ERROR,
+        WARNING,
+        INFO,
+        DEBUG;
+
+        /** The label written for the level. */
+        private final String mLabel = name().toLowerCase();
+    }
+
+    /** The number of messages the buffer holds. Must be a power of two. */
+    private static final int CAPACITY = 4096;
+
+    /** How long a rate limiting window is in ms. */
+    private static final long RATE_WINDOW_MS = 10000;
+
+    /** The number of identical messages written per window before the rest are suppressed. */
+    private static final int RATE_LIMIT = 3;
+
+    /** The most distinct messages tracked for rate limiting at once. */
+    private static final int MAX_RATE_WINDOWS = 4096;
+
+    /** The longest the writer thread sleeps before checking for expired windows in ms. */
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    /** How long to wait for the writer thread to finish when stopping in ms. */
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    /** The log the whole server writes to. */
+    private static final SignalLog INSTANCE = new SignalLog(System.err);
+
+    /** A slot in the ring buffer. */
+    private static final class Entry {
+        /** One more than the position of the message in the slot once it's been published. */
+        volatile long mPublished;
+
+        /** The level of the message. */
+        Level mLevel;
+
+        /** The time (ms since the epoch) the message was logged. */
+        long mTimeMs;
+
+        /** The signal the message is about or null. */
+        String mSignalId;
+
+        /** The message. */
+        String mMessage;
+    }
+
+    /** The counts for one distinct message in the current rate limiting window. */
+    private static final class RateWindow {
+        /** The level of the message. */
+        Level mLevel;
+
+        /** The signal the message is about or null. */
+        String mSignalId;
+
+        /** The message. */
+        String mMessage;
+
+        /** The time (ms) the window started. */
+        long mStartMs;
+
+        /** The number of times the message was logged in the window. */
+        int mCount;
+    }
+
+    /** Where lines are written. */
+    private final PrintStream mOut;
+
+    /** The ring buffer of messages waiting to be written. */
+    private final Entry[] mRing;
+
+    /** The position of the next slot to be claimed by a producer. */
+    private final AtomicLong mTail;
+
+    /** The number of messages dropped because the buffer was full. */
+    private final LongAdder mDropped;
+
+    /** The thread writing messages. */
+    private final Thread mThread;
+
+    /** Rate limiting windows keyed by level, signal and message. Only used by mThread. */
+    private final Map<String, RateWindow> mRateWindows;
+
+    /** Formats the time of each line. */
+    private final DateTimeFormatter mTimeFormatter;
+
+    /** The position of the next slot to be written. Only advanced by mThread. */
+    private volatile long mHead;
+
+    /** Whether the writer thread is (about to be) parked waiting for messages. */
+    private volatile boolean mWaiting;
+
+    /** Whether the log has been stopped; messages are then written synchronously. */
+    private volatile boolean mStopped;
+
+    /** The least important level written. */
+    private volatile Level mLevel;
+
+    /** @param out Where lines are written. */
+    private SignalLog(PrintStream out) {
+        mOut = out;
+        mRing = new Entry[CAPACITY];
+        for (int i = 0; i < CAPACITY; i++) {
+            mRing[i] = new Entry();
+        }
+        mTail = new AtomicLong();
+        mDropped = new LongAdder();
+        mRateWindows = new HashMap<>();
+        mTimeFormatter = DateTimeFormatter.ISO_INSTANT;
+        mLevel = Level.INFO;
+        mThread = new Thread(this, "SignalLog");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** @param message An error that isn't about a particular signal. */
+    static void error(String message) {
+        INSTANCE.log(Level.ERROR, null, message);
+    }
+
+    /**
+     * @param signalId The signal the error is about or null.
+     * @param message The error.
+     */
+    static void error(String signalId, String message) {
+        INSTANCE.log(Level.ERROR, signalId, message);
+    }
+
+    /** @param message A warning that isn't about a particular signal. */
+    static void warning(String message) {
+        INSTANCE.log(Level.WARNING, null, message);
+    }
+
+    /**
+     * @param signalId The signal the warning is about or null.
+     * @param message The warning.
+     */
+    static void warning(String signalId, String message) {
+        INSTANCE.log(Level.WARNING, signalId, message);
+    }
+
+    /** @param message Information that isn't about a particular signal. */
+    static void info(String message) {
+        INSTANCE.log(Level.INFO, null, message);
+    }
+
+    /**
+     * @param signalId The signal the information is about or null.
+     * @param message The information.
+     */
+    static void info(String signalId, String message) {
+        INSTANCE.log(Level.INFO, signalId, message);
+    }
+
+    /**
+     * @param signalId The signal the message is about or null.
+     * @param message A debugging message. Guard building expensive ones with isEnabled().
+     */
+    static void debug(String signalId, String message) {
+        INSTANCE.log(Level.DEBUG, signalId, message);
+    }
+
+    /**
+     * @param level A level.
+     * @return Whether messages at the level are written.
+     */
+    static boolean isEnabled(Level level) {
+        return level.compareTo(INSTANCE.mLevel) <= 0;
+    }
+
+    /** @param level The least important level to write. */
+    static void setLevel(Level level) {
+        INSTANCE.mLevel = level;
+    }
+
+    /**
+     * Write everything logged so far and stop the writer thread. Anything logged afterwards is
+     * written synchronously.
+     */
+    static void stop() {
+        INSTANCE.mStopped = true;
+        LockSupport.unpark(INSTANCE.mThread);
+        try {
+            INSTANCE.mThread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a message to be written. Never blocks.
+     * @param level The level of the message.
+     * @param signalId The signal the message is about or null.
+     * @param message The message.
+     */
+    private void log(Level level, String signalId, String message) {
+        if (level.compareTo(mLevel) > 0) return;
+        long nowMs = System.currentTimeMillis();
+        if (mStopped && !mThread.isAlive()) {
+            synchronized (mOut) {
+                mOut.println(format(level, nowMs, signalId, message));
+            }
+            return;
+        }
+
+        long tail;
+        do {
+            tail = mTail.get();
+            if (tail - mHead >= CAPACITY) {
+                mDropped.increment();
+                return;
+            }
+        } while (!mTail.compareAndSet(tail, tail + 1));
+
+        Entry entry = mRing[(int) (tail & (CAPACITY - 1))];
+        entry.mLevel = level;
+        entry.mTimeMs = nowMs;
+        entry.mSignalId = signalId;
+        entry.mMessage = message;
+        entry.mPublished = tail + 1;
+        if (mWaiting) LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void run() {
+        StringBuilder lines = new StringBuilder();
+        long nextSweepMs = System.currentTimeMillis() + SWEEP_INTERVAL_MS;
+        while (true) {
+            drain(lines);
+
+            long nowMs = System.currentTimeMillis();
+            if (nowMs >= nextSweepMs) {
+                sweep(lines, nowMs, false);
+                nextSweepMs = nowMs + SWEEP_INTERVAL_MS;
+            }
+
+            long dropped = mDropped.sumThenReset();
+            if (dropped > 0) {
+                lines.append(format(Level.WARNING, nowMs, null, "Log buffer full, dropped "
+                        + dropped + " message(s).")).append('\n');
+            }
+
+            boolean stopping = mStopped;
+            if (stopping) sweep(lines, nowMs, true);
+            if (lines.length() > 0) {
+                mOut.print(lines);
+                mOut.flush();
+                lines.setLength(0);
+            }
+            if (stopping && !isPublished(mHead)) return;
+
+            // Set the flag before checking for messages so a producer either sees it and wakes
+            // the thread or publishes before the check.
+            mWaiting = true;
+            if (!isPublished(mHead) && !mStopped) {
+                LockSupport.parkNanos(this,
+                        TimeUnit.MILLISECONDS.toNanos(Math.max(1, nextSweepMs - nowMs)));
+            }
+            mWaiting = false;
+        }
+    }
+
+    /**
+     * @param position A position in the ring buffer.
+     * @return Whether a message has been published at the position.
+     */
+    private boolean isPublished(long position) {
+        return mRing[(int) (position & (CAPACITY - 1))].mPublished == position + 1;
+    }
+
+    /**
+     * Format every published message, subject to rate limiting, and free their slots.
+     * @param lines Where to append the formatted lines.
+     */
+    private void drain(StringBuilder lines) {
+        long head = mHead;
+        while (isPublished(head)) {
+            Entry entry = mRing[(int) (head & (CAPACITY - 1))];
+            Level level = entry.mLevel;
+            long timeMs = entry.mTimeMs;
+            String signalId = entry.mSignalId;
+            String message = entry.mMessage;
+            entry.mSignalId = null;
+            entry.mMessage = null;
+            mHead = ++head;
+
+            if (allow(level, timeMs, signalId, message)) {
+                lines.append(format(level, timeMs, signalId, message)).append('\n');
+            }
+        }
+    }
+
+    /**
+     * @param level The level of the message.
+     * @param timeMs The time (ms) the message was logged.
+     * @param signalId The signal the message is about or null.
+     * @param message The message.
+     * @return Whether the message should be written rather than suppressed.
+     */
+    private boolean allow(Level level, long timeMs, String signalId, String message) {
+        String key = level.mLabel + '\0' + signalId + '\0' + message;
+        RateWindow window = mRateWindows.get(key);
+        if (window == null) {
+            if (mRateWindows.size() >= MAX_RATE_WINDOWS) return true;
+            window = new RateWindow();
+            window.mLevel = level;
+            window.mSignalId = signalId;
+            window.mMessage = message;
+            window.mStartMs = timeMs;
+            mRateWindows.put(key, window);
+        }
+        return ++window.mCount <= RATE_LIMIT;
+    }
+
+    /**
+     * Close rate limiting windows, reporting how many messages each one suppressed.
+     * @param lines Where to append the report lines.
+     * @param nowMs The current time in ms.
+     * @param all Whether to close every window rather than only expired ones.
+     */
+    private void sweep(StringBuilder lines, long nowMs, boolean all) {
+        Iterator<RateWindow> it = mRateWindows.values().iterator();
+        while (it.hasNext()) {
+            RateWindow window = it.next();
+            if (!all && nowMs - window.mStartMs < RATE_WINDOW_MS) continue;
+            it.remove();
+
+            int suppressed = window.mCount - RATE_LIMIT;
+            if (suppressed <= 0) continue;
+            lines.append(format(window.mLevel, nowMs, window.mSignalId,
+                    "Suppressed " + suppressed + " more of: " + window.mMessage)).append('\n');
+        }
+    }
+
+    /**
+     * @param level The level of the message.
+     * @param timeMs The time (ms) the message was logged.
+     * @param signalId The signal the message is about or null.
+     * @param message The message.
+     * @return The line for the message.
+     */
+    private String format(Level level, long timeMs, String signalId, String message) {
+        return mTimeFormatter.format(Instant.ofEpochMilli(timeMs)) + " [" + level.mLabel + "]"
+                + (signalId != null ? " signal=" + signalId : "") + ": " + message;
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * File: SignalMetrics.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Counters and latency histograms for each stage a command goes through, from the HTTP
+ *       request to the signal showing the new state. Everything here is recorded on the paths
+ *       that talk to signals, so recording never locks or allocates; the work of summarizing
+ *       happens when the metrics are read.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.util.concurrent.atomic.LongAdder;
+
+class SignalMetrics {
+    /** The time from an API request arriving to its command being queued. */
+    private final LatencyHistogram mRequestToEnqueue;
+
+    /**
+     * The time from a message being queued, or from a state command being released by the
+     * actuation scheduler if that's later, to it being handed to a signal's socket.
+     */
+    private final LatencyHistogram mEnqueueToWrite;
+
+    /**
+     * The time a state command is held after being queued for its signal to finish changing
+     * and for its turn to change.
+     */
+    private final LatencyHistogram mActuationHold;
+
+    /** The time from a state command being written to the signal acknowledging it. */
+    private final LatencyHistogram mWriteToAck;
+
+    /** The time from a ping being written to the signal acknowledging it. */
+    private final LatencyHistogram mPingRoundTrip;
+
+    /**
+     * The time from a signal acknowledging a state command to it reporting that it shows the
+     * new state, i.e. how long it physically takes to settle. Only signals that send status
+     * frames contribute.
+     */
+    private final LatencyHistogram mAckToSettle;
+
+    /** The number of messages queued for signals. */
+    private final LongAdder mMessagesQueued;
+
+    /** The number of messages that couldn't be queued (unknown signal or full queue). */
+    private final LongAdder mMessagesRejected;
+
+    /** The number of connections closed because a signal missed its ack deadline. */
+    private final LongAdder mAckTimeouts;
+
+    /** The number of connections closed because a signal stopped answering heartbeats. */
+    private final LongAdder mHeartbeatTimeouts;
+
+    /** The number of API requests turned away for going over a rate limit. */
+    private final LongAdder mRateLimited;
+
+    /** Default constructor. */
+    SignalMetrics() {
+        mRequestToEnqueue = new LatencyHistogram();
+        mEnqueueToWrite = new LatencyHistogram();
+        mActuationHold = new LatencyHistogram();
+        mWriteToAck = new LatencyHistogram();
+        mPingRoundTrip = new LatencyHistogram();
+        mAckToSettle = new LatencyHistogram();
+        mMessagesQueued = new LongAdder();
+        mMessagesRejected = new LongAdder();
+        mAckTimeouts = new LongAdder();
+        mHeartbeatTimeouts = new LongAdder();
+        mRateLimited = new LongAdder();
+    }
+
+    /**
+     * Record a message being handed to a signal's socket. A state command's time held by the
+     * actuation scheduler is kept apart from the time it then took to be written.
+     * @param message The message that was written.
+     * @param releasedNanos The time (from System.nanoTime()) the signal was last let start
+     *                      changing.
+     */
+    void recordWrite(SignalCommand message, long releasedNanos) {
+        long startNanos = message.getEnqueuedNanos();
+        if (!message.isPing()) {
+            // A release from before the command was queued was for an earlier command.
+            long heldNanos = Math.max(0, releasedNanos - startNanos);
+            mActuationHold.record(heldNanos);
+            startNanos += heldNanos;
+        }
+        mEnqueueToWrite.recordSince(startNanos);
+    }
+
+    /**
+     * Record a message being acknowledged by a signal.
+     * @param message The message that was acknowledged.
+     * @param nowNanos The current time from {@link System#nanoTime()}.
+     */
+    void recordAck(SignalCommand message, long nowNanos) {
+        long writtenNanos = message.getWrittenNanos();
+        if (writtenNanos == 0) return;
+        (message.isPing() ? mPingRoundTrip : mWriteToAck).record(nowNanos - writtenNanos);
+    }
+
+    /** @param queued Whether a message was queued or rejected. */
+    void recordQueued(boolean queued) {
+        (queued ? mMessagesQueued : mMessagesRejected).increment();
+    }
+
+    /** Record a connection being closed because the signal missed its ack deadline. */
+    void recordAckTimeout() {
+        mAckTimeouts.increment();
+    }
+
+    /** Record a connection being closed because the signal stopped answering heartbeats. */
+    void recordHeartbeatTimeout() {
+        mHeartbeatTimeouts.increment();
+    }
+
+    /** Record an API request being turned away for going over a rate limit. */
+    void recordRateLimited() {
+        mRateLimited.increment();
+    }
+
+    /** @return The time from an API request arriving to its command being queued. */
+    LatencyHistogram getRequestToEnqueue() {
+        return mRequestToEnqueue;
+    }
+
+    /** @return The time from a message being queued or released to it being written. */
+    LatencyHistogram getEnqueueToWrite() {
+        return mEnqueueToWrite;
+    }
+
+    /** @return The time a state command is held for its signal to be ready to change. */
+    LatencyHistogram getActuationHold() {
+        return mActuationHold;
+    }
+
+    /** @return The time from a state command being written to the signal acknowledging it. */
+    LatencyHistogram getWriteToAck() {
+        return mWriteToAck;
+    }
+
+    /** @return The time from a ping being written to the signal acknowledging it. */
+    LatencyHistogram getPingRoundTrip() {
+        return mPingRoundTrip;
+    }
+
+    /** @return The time from a signal acknowledging a state command to it settling. */
+    LatencyHistogram getAckToSettle() {
+        return mAckToSettle;
+    }
+
+    /** @return The number of messages queued for signals. */
+    long getMessagesQueued() {
+        return mMessagesQueued.sum();
+    }
+
+    /** @return The number of messages that couldn't be queued. */
+    long getMessagesRejected() {
+        return mMessagesRejected.sum();
+    }
+
+    /** @return The number of connections closed because a signal missed its ack deadline. */
+    long getAckTimeouts() {
+        return mAckTimeouts.sum();
+    }
+
+    /** @return The number of connections closed because a signal stopped answering heartbeats. */
+    long getHeartbeatTimeouts() {
+        return mHeartbeatTimeouts.sum();
+    }
+
+    /** @return The number of API requests turned away for going over a rate limit. */
+    long getRateLimited() {
+        return mRateLimited.sum();
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * File: SignalMetricsApi.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Serves the server's metrics at /metrics in the Prometheus text format. Latencies are
+ *       summaries in seconds with a few percentiles; per-signal counters are labelled with the
+ *       signal ID.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+@WebServlet(name = "SignalMetricsApi", urlPatterns = "/metrics", loadOnStartup = 2)
+public class SignalMetricsApi extends HttpServlet {
+    private static final long serialVersionUID = 20261016L;
+
+    /** The content type of the Prometheus text format. */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** The percentiles reported for every latency. */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /** The quantile label for each of PERCENTILES. */
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+    /** The prefix for every metric name. */
+    private static final String PREFIX = "trainsignal_";
+
+    public SignalMetricsApi() {}
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        SignalServer server = (SignalServer) getServletContext().getAttribute(
+                TrainSignalApi.SERVER_ATTRIBUTE);
+        if (server == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        byte[] body = render(server).getBytes(StandardCharsets.UTF_8);
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * @param server The server to report on.
+     * @return The server's metrics in the Prometheus text format.
+     */
+    static String render(SignalServer server) {
+        SignalMetrics metrics = server.getMetrics();
+        StringBuilder out = new StringBuilder(4096);
+
+        appendSummary(out, "request_to_enqueue_seconds",
+                "Time from an API request arriving to its command being queued.",
+                metrics.getRequestToEnqueue());
+        appendSummary(out, "actuation_hold_seconds",
+                "Time a state command is held for its signal to finish changing or its turn.",
+                metrics.getActuationHold());
+        appendSummary(out, "enqueue_to_write_seconds",
+                "Time from a message being queued or released to it being written to the signal.",
+                metrics.getEnqueueToWrite());
+        appendSummary(out, "write_to_ack_seconds",
+                "Time from a state command being written to the signal acking it.",
+                metrics.getWriteToAck());
+        appendSummary(out, "ping_round_trip_seconds",
+                "Time from a ping being written to the signal acking it.",
+                metrics.getPingRoundTrip());
+        appendSummary(out, "ack_to_settle_seconds",
+                "Time from a signal acking a state command to reporting it shows the state.",
+                metrics.getAckToSettle());
+
+        appendHeader(out, "messages_queued_total", "counter", "Messages queued for signals.");
+        appendValue(out, "messages_queued_total", null, metrics.getMessagesQueued());
+        appendHeader(out, "messages_rejected_total", "counter",
+                "Messages that couldn't be queued.");
+        appendValue(out, "messages_rejected_total", null, metrics.getMessagesRejected());
+        appendHeader(out, "ack_timeouts_total", "counter",
+                "Connections closed because a signal missed its ack deadline.");
+        appendValue(out, "ack_timeouts_total", null, metrics.getAckTimeouts());
+        appendHeader(out, "heartbeat_timeouts_total", "counter",
+                "Connections closed because a signal stopped answering heartbeats.");
+        appendValue(out, "heartbeat_timeouts_total", null, metrics.getHeartbeatTimeouts());
+        appendHeader(out, "rate_limited_total", "counter",
+                "API requests turned away with 429 for going over a rate limit.");
+        appendValue(out, "rate_limited_total", null, metrics.getRateLimited());
+        appendHeader(out, "actuations_waiting", "gauge",
+                "Signals with a command held until they're done changing or it's their turn.");
+        appendValue(out, "actuations_waiting", null,
+                server.getActuationScheduler().getWaitingCount());
+        appendHeader(out, "sequences_running", "gauge", "Timed sequences of changes running.");
+        appendValue(out, "sequences_running", null, server.getSequencer().getRunningCount());
+        appendHeader(out, "event_subscribers", "gauge", "Clients subscribed to state events.");
+        appendValue(out, "event_subscribers", null,
+                server.getStateBroadcaster().getSubscriberCount());
+
+        // Gather the per-signal values in one pass so the totals match them.
+        StringBuilder connected = new StringBuilder();
+        StringBuilder queueDepth = new StringBuilder();
+        StringBuilder connects = new StringBuilder();
+        StringBuilder coalesced = new StringBuilder();
+        long connectedTotal = 0;
+        long queueDepthTotal = 0;
+        for (SignalSession session : server.getSessions()) {
+            String signalId = session.getSignalId();
+            int depth = session.getQueueDepth();
+            connectedTotal += session.isConnected() ? 1 : 0;
+            queueDepthTotal += depth;
+            appendValue(connected, "signal_connected", signalId, session.isConnected() ? 1 : 0);
+            appendValue(queueDepth, "signal_queue_depth", signalId, depth);
+            appendValue(connects, "signal_connects_total", signalId, session.getConnectCount());
+            appendValue(coalesced, "signal_coalesced_total", signalId,
+                    session.getCoalescedCount());
+        }
+
+        appendHeader(out, "signals_connected", "gauge", "Signals currently connected.");
+        appendValue(out, "signals_connected", null, connectedTotal);
+        appendHeader(out, "queue_depth", "gauge", "Messages waiting to be sent to any signal.");
+        appendValue(out, "queue_depth", null, queueDepthTotal);
+        appendHeader(out, "signal_connected", "gauge", "Whether each signal is connected.");
+        out.append(connected);
+        appendHeader(out, "signal_queue_depth", "gauge",
+                "Messages waiting to be sent to each signal.");
+        out.append(queueDepth);
+        appendHeader(out, "signal_connects_total", "counter",
+                "Times each signal has connected; anything above 1 is a reconnect.");
+        out.append(connects);
+        appendHeader(out, "signal_coalesced_total", "counter",
+                "State commands replaced by a newer one before being sent, per signal.");
+        out.append(coalesced);
+        return out.toString();
+    }
+
+    /**
+     * @param out The output to append to.
+     * @param name The name of the metric without the prefix.
+     * @param help A description of the metric.
+     * @param histogram The latencies to summarize.
+     */
+    private static void appendSummary(StringBuilder out, String name, String help,
+            LatencyHistogram histogram) {
+        appendHeader(out, name, "summary", help);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            out.append(PREFIX).append(name).append("{quantile=\"").append(QUANTILE_LABELS[i])
+                    .append("\"} ")
+                    .append(toSeconds(histogram.getValueAtPercentile(PERCENTILES[i])))
+                    .append('\n');
+        }
+        out.append(PREFIX).append(name).append("_sum ").append(toSeconds(histogram.getSum()))
+                .append('\n');
+        out.append(PREFIX).append(name).append("_count ").append(histogram.getCount())
+                .append('\n');
+    }
+
+    /**
+     * @param out The output to append to.
+     * @param name The name of the metric without the prefix.
+     * @param type The Prometheus type of the metric.
+     * @param help A description of the metric.
+     */
+    private static void appendHeader(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * @param out The output to append to.
+     * @param name The name of the metric without the prefix.
+     * @param signalId The signal the value is for or null if it isn't for a single signal.
+     * @param value The value.
+     */
+    private static void appendValue(StringBuilder out, String name, String signalId,
+            long value) {
+        out.append(PREFIX).append(name);
+        // Signal IDs are validated, so they never need escaping.
+        if (signalId != null) out.append("{signal=\"").append(signalId).append("\"}");
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @param nanos A time in ns.
+     * @return The time in seconds.
+     */
+    private static double toSeconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * File: SignalRegistry.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Records which node in a cluster each signal is connected to, so a node that receives a
+ *       command for a signal it doesn't host knows where to forward it. Nodes are identified by
+ *       the host:port their cluster listener is reachable at. The latest node a signal connects
+ *       to owns it.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+
+interface SignalRegistry {
+    /**
+     * Record a node as the owner of a signal, replacing any previous owner.
+     * @param signalId The ID of the signal.
+     * @param node The node the signal connected to.
+     * @throws IOException
+     */
+    void claim(String signalId, String node) throws IOException;
+
+    /**
+     * Forget a node's ownership of a signal. Does nothing if another node owns it now.
+     * @param signalId The ID of the signal.
+     * @param node The node the signal disconnected from.
+     * @throws IOException
+     */
+    void release(String signalId, String node) throws IOException;
+
+    /**
+     * @param signalId The ID of a signal.
+     * @return The node the signal is connected to or null if it isn't connected to any.
+     * @throws IOException
+     */
+    String getOwner(String signalId) throws IOException;
+}
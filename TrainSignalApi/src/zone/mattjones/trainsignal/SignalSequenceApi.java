@@ -0,0 +1,226 @@
+/**
+ * File: SignalSequenceApi.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: API for timed sequences of signal changes run by the server, so a demo or a route being
+ *       set step by step doesn't need a client making a request per change. POST to /sequence
+ *       with a JSON object listing the steps and how many times to run them:
+ *
+ *       {"repeat":0,"steps":[{"signal":"north","aspect":"g1","delayMs":0},
+ *                            {"signal":"north","aspect":"r1","delayMs":5000}]}
+ *
+ *       Each step waits delayMs after the one before it, and at least 100 ms unless it's the
+ *       sequence's first. repeat defaults to 1; 0 runs the steps until the sequence is cancelled.
+ *       The response has the new sequence's ID. GET lists the running sequences and
+ *       DELETE /sequence?id=__ID__ cancels one.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import zone.mattjones.trainsignal.SignalSequencer.Sequence;
+import zone.mattjones.trainsignal.SignalSequencer.Step;
+
+@WebServlet(name = "SignalSequenceApi", urlPatterns = "/sequence", loadOnStartup = 2)
+public class SignalSequenceApi extends HttpServlet {
+    private static final long serialVersionUID = 20261016L;
+
+    /** The response for cancelling a sequence. */
+    private static final byte[] CANCELLED_RESPONSE =
+            "{\"error\":false}".getBytes(StandardCharsets.UTF_8);
+
+    /** The response for an unknown sequence. */
+    private static final byte[] UNKNOWN_SEQUENCE_RESPONSE =
+            "{\"error\":true}".getBytes(StandardCharsets.UTF_8);
+
+    public SignalSequenceApi() {}
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        SignalServer server = getServer(response);
+        if (server == null) return;
+
+        Sequence sequence;
+        try {
+            String body = SignalBatchApi.readBody(request.getInputStream());
+            int[] repeat = {1};
+            List<Step> steps = parseSequence(body, repeat);
+            sequence = server.getSequencer().start(steps, repeat[0]);
+        } catch (IllegalArgumentException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+        if (sequence == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Too many sequences running.");
+            return;
+        }
+        TrainSignalApi.writeResponse(response, ("{\"error\":false,\"sequence\":" + sequence.mId
+                + "}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        SignalServer server = getServer(response);
+        if (server == null) return;
+
+        StringBuilder builder = new StringBuilder("{\"sequences\":[");
+        for (Sequence sequence : server.getSequencer().getSequences()) {
+            if (builder.charAt(builder.length() - 1) != '[') builder.append(',');
+            builder.append("{\"id\":").append(sequence.mId)
+                    .append(",\"steps\":").append(sequence.mSteps.length)
+                    .append(",\"step\":").append(sequence.mStep)
+                    .append(",\"lap\":").append(sequence.mLap)
+                    .append(",\"repeat\":").append(sequence.mRepeat).append('}');
+        }
+        response.setHeader("Cache-Control", "no-cache");
+        TrainSignalApi.writeResponse(response,
+                builder.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        SignalServer server = getServer(response);
+        if (server == null) return;
+
+        long id;
+        try {
+            id = Long.parseLong(String.valueOf(request.getParameter("id")).trim());
+        } catch (NumberFormatException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid sequence ID.");
+            return;
+        }
+        if (server.getSequencer().cancel(id)) {
+            TrainSignalApi.writeResponse(response, CANCELLED_RESPONSE);
+        } else {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            TrainSignalApi.writeResponse(response, UNKNOWN_SEQUENCE_RESPONSE);
+        }
+    }
+
+    /**
+     * @param response The response, which is sent a 503 if the server isn't running.
+     * @return The signal server or null if it isn't running.
+     */
+    private SignalServer getServer(HttpServletResponse response) throws IOException {
+        SignalServer server = (SignalServer) getServletContext().getAttribute(
+                TrainSignalApi.SERVER_ATTRIBUTE);
+        if (server == null) response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return server;
+    }
+
+    /**
+     * Parse a sequence. Like the batch API, only the subset of JSON needed is understood.
+     * @param body The request body.
+     * @param repeat Set to the number of times to run the steps if the body says.
+     * @return The steps in the order they run.
+     */
+    static List<Step> parseSequence(String body, int[] repeat) {
+        List<Step> steps = null;
+        int[] index = {SignalBatchApi.skipWhitespace(body, 0)};
+        SignalBatchApi.expect(body, index, '{');
+        while (SignalBatchApi.peek(body, index) != '}') {
+            String key = SignalBatchApi.readString(body, index);
+            SignalBatchApi.expect(body, index, ':');
+            if ("repeat".equals(key)) {
+                repeat[0] = (int) Math.min(readNumber(body, index), Integer.MAX_VALUE);
+            } else if ("steps".equals(key)) {
+                steps = parseSteps(body, index);
+            } else {
+                throw new IllegalArgumentException("Unknown field '" + key + "'.");
+            }
+            if (SignalBatchApi.peek(body, index) != ',') break;
+            index[0]++;
+        }
+        SignalBatchApi.expect(body, index, '}');
+        if (SignalBatchApi.skipWhitespace(body, index[0]) != body.length()) {
+            throw new IllegalArgumentException("Unexpected data after JSON object.");
+        }
+        if (steps == null) throw new IllegalArgumentException("No steps in sequence.");
+        return steps;
+    }
+
+    /**
+     * @param body The JSON being parsed.
+     * @param index The current index, which is moved past the array of steps.
+     * @return The steps in the order they run.
+     */
+    private static List<Step> parseSteps(String body, int[] index) {
+        List<Step> steps = new ArrayList<>();
+        SignalBatchApi.expect(body, index, '[');
+        while (SignalBatchApi.peek(body, index) != ']') {
+            steps.add(parseStep(body, index));
+            if (steps.size() > SignalSequencer.MAX_STEPS) {
+                throw new IllegalArgumentException("Sequence exceeded "
+                        + SignalSequencer.MAX_STEPS + " steps.");
+            }
+            if (SignalBatchApi.peek(body, index) != ',') break;
+            index[0]++;
+        }
+        SignalBatchApi.expect(body, index, ']');
+        return steps;
+    }
+
+    /**
+     * @param body The JSON being parsed.
+     * @param index The current index, which is moved past the step.
+     * @return The step.
+     */
+    private static Step parseStep(String body, int[] index) {
+        String signalId = TrainSignalMessage.DEFAULT_SIGNAL_ID;
+        SignalAspect aspect = null;
+        long delayMs = 0;
+        SignalBatchApi.expect(body, index, '{');
+        while (SignalBatchApi.peek(body, index) != '}') {
+            String key = SignalBatchApi.readString(body, index);
+            SignalBatchApi.expect(body, index, ':');
+            if ("signal".equals(key)) {
+                signalId = SignalBatchApi.readString(body, index);
+            } else if ("aspect".equals(key)) {
+                aspect = SignalBatchApi.parseAspect(SignalBatchApi.readString(body, index));
+            } else if ("delayMs".equals(key)) {
+                delayMs = readNumber(body, index);
+            } else {
+                throw new IllegalArgumentException("Unknown step field '" + key + "'.");
+            }
+            if (SignalBatchApi.peek(body, index) != ',') break;
+            index[0]++;
+        }
+        SignalBatchApi.expect(body, index, '}');
+        if (aspect == null) throw new IllegalArgumentException("Step has no aspect.");
+        if (!TrainSignalMessage.isValidSignalId(signalId)) {
+            throw new IllegalArgumentException("Invalid signal ID.");
+        }
+        return new Step(signalId, aspect, delayMs);
+    }
+
+    /**
+     * @param body The JSON being parsed.
+     * @param index The current index, which is moved past the number.
+     * @return The non-negative whole number at the index.
+     */
+    private static long readNumber(String body, int[] index) {
+        SignalBatchApi.peek(body, index);
+        int start = index[0];
+        while (index[0] < body.length() && index[0] - start < 18
+                && body.charAt(index[0]) >= '0' && body.charAt(index[0]) <= '9') {
+            index[0]++;
+        }
+        if (index[0] == start) {
+            throw new IllegalArgumentException("Expected a number at " + start + ".");
+        }
+        return Long.parseLong(body.substring(start, index[0]));
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * File: SignalSequencer.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Runs timed sequences of signal changes on the server, e.g. a demo cycling a signal
+ *       through its aspects or a route being set one signal at a time. A sequence is a list of
+ *       steps, each changing one signal after a delay from the step before it, optionally
+ *       repeated. Every sequence shares a single thread that sleeps until the next step is due,
+ *       so thousands of sequences cost no more threads than one.
+ *
+ *       Step times are measured from when the sequence started rather than from when the
+ *       previous step actually ran, so a late step doesn't push back the ones after it. Every step
+ *       after the first waits at least MIN_STEP_MS, even one running late, and steps from all
+ *       sequences together are paced to MAX_STEPS_PER_SECOND, so no set of sequences can flood
+ *       the signals' queues.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
+
+class SignalSequencer implements Runnable {
+    /** The most sequences that can run at once. */
+    static final int MAX_SEQUENCES = 1024;
+
+    /** The most steps a sequence can have. */
+    static final int MAX_STEPS = 256;
+
+    /** The longest delay before a step in ms. */
+    static final long MAX_DELAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    /** The least time between two steps of a sequence in ms; shorter delays are stretched. */
+    static final long MIN_STEP_MS = 100;
+
+    /** The most steps sent per second across every sequence. */
+    static final int MAX_STEPS_PER_SECOND = 1000;
+
+    /** The most steps that can be sent at once after the sequencer has been idle. */
+    private static final int MAX_STEP_BURST = 100;
+
+    /** The time the step budget takes to earn one step in ns. */
+    private static final long STEP_INTERVAL_NANOS =
+            TimeUnit.SECONDS.toNanos(1) / MAX_STEPS_PER_SECOND;
+
+    /** A single change in a sequence. */
+    static final class Step {
+        /** The ID of the signal to change. */
+        final String mSignalId;
+
+        /** The aspect to change the signal to. */
+        final SignalAspect mAspect;
+
+        /** The time to wait after the previous step (or the start) before this one in ms. */
+        final long mDelayMs;
+
+        /**
+         * @param signalId The ID of the signal to change.
+         * @param aspect The aspect to change the signal to.
+         * @param delayMs The time to wait after the previous step before this one in ms.
+         */
+        Step(String signalId, SignalAspect aspect, long delayMs) {
+            mSignalId = signalId;
+            mAspect = aspect;
+            mDelayMs = delayMs;
+        }
+    }
+
+    /** A running sequence. Only modified by the sequencer's thread while holding its lock. */
+    static final class Sequence implements Comparable<Sequence> {
+        /** The sequence's ID. */
+        final long mId;
+
+        /** The steps to run. */
+        final Step[] mSteps;
+
+        /** The number of times to run the steps or 0 to run them until cancelled. */
+        final int mRepeat;
+
+        /** The index of the next step to run. */
+        volatile int mStep;
+
+        /** The number of times the steps have all been run. */
+        volatile int mLap;
+
+        /** The time (from System.nanoTime()) the next step is due. */
+        long mDueNanos;
+
+        /**
+         * @param id The sequence's ID.
+         * @param steps The steps to run.
+         * @param repeat The number of times to run the steps or 0 to run them until cancelled.
+         * @param startNanos The time (from System.nanoTime()) the sequence starts.
+         */
+        Sequence(long id, Step[] steps, int repeat, long startNanos) {
+            mId = id;
+            mSteps = steps;
+            mRepeat = repeat;
+            mDueNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(steps[0].mDelayMs);
+        }
+
+        @Override
+        public int compareTo(Sequence other) {
+            // Compared as a difference since nanoTime can wrap.
+            long diff = mDueNanos - other.mDueNanos;
+            if (diff != 0) return diff < 0 ? -1 : 1;
+            return Long.compare(mId, other.mId);
+        }
+
+        /**
+         * Move on to the next step.
+         * @param nowNanos The time (from System.nanoTime()) the current step ran.
+         * @return Whether there are more steps to run.
+         */
+        private boolean advance(long nowNanos) {
+            int step = mStep + 1;
+            if (step == mSteps.length) {
+                mLap++;
+                if (mRepeat > 0 && mLap >= mRepeat) return false;
+                step = 0;
+            }
+            mStep = step;
+            long delayMs = Math.max(mSteps[step].mDelayMs, MIN_STEP_MS);
+            mDueNanos += TimeUnit.MILLISECONDS.toNanos(delayMs);
+            // A late sequence catches up, but never faster than one step per MIN_STEP_MS.
+            long earliestNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(MIN_STEP_MS);
+            if (mDueNanos - earliestNanos < 0) mDueNanos = earliestNanos;
+            return true;
+        }
+    }
+
+    /** Sends a signal the aspect a step asks for, returning whether it was accepted. */
+    private final BiPredicate<String, SignalAspect> mDispatcher;
+
+    /** Sequences waiting for their next step, soonest first. Guarded by mLock. */
+    private final PriorityQueue<Sequence> mQueue;
+
+    /** Running sequences, keyed by ID. */
+    private final ConcurrentHashMap<Long, Sequence> mSequences;
+
+    /** Guards mQueue and mNextId. */
+    private final ReentrantLock mLock;
+
+    /** Signalled when a sequence is added or removed, or the sequencer is stopped. */
+    private final Condition mChanged;
+
+    /** The thread running the steps. */
+    private final Thread mThread;
+
+    /** The ID to give the next sequence. */
+    private long mNextId;
+
+    /**
+     * The time (from System.nanoTime()) the step budget is spent up to; steps can be sent while
+     * it's less than MAX_STEP_BURST steps ahead of now. Only used by the sequencer's thread.
+     */
+    private long mBudgetNanos;
+
+    /** Whether the sequencer has been stopped. */
+    private volatile boolean mStopped;
+
+    /** @param dispatcher Sends a signal the aspect a step asks for. */
+    SignalSequencer(BiPredicate<String, SignalAspect> dispatcher) {
+        mDispatcher = dispatcher;
+        mQueue = new PriorityQueue<>();
+        mSequences = new ConcurrentHashMap<>();
+        mLock = new ReentrantLock();
+        mChanged = mLock.newCondition();
+        mNextId = 1;
+        mBudgetNanos = System.nanoTime();
+        mThread = new Thread(this, "SignalSequencer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Start running a sequence. The first step runs after its delay from now.
+     * @param steps The steps to run.
+     * @param repeat The number of times to run the steps or 0 to run them until cancelled.
+     * @return The started sequence or null if too many sequences are already running.
+     */
+    Sequence start(List<Step> steps, int repeat) {
+        if (steps.isEmpty() || steps.size() > MAX_STEPS) {
+            throw new IllegalArgumentException("A sequence needs 1 to " + MAX_STEPS + " steps.");
+        }
+        if (repeat < 0) throw new IllegalArgumentException("Repeat can't be negative.");
+        for (Step step : steps) {
+            if (step.mDelayMs < 0 || step.mDelayMs > MAX_DELAY_MS) {
+                throw new IllegalArgumentException("Step delays must be 0 to " + MAX_DELAY_MS
+                        + " ms.");
+            }
+        }
+
+        mLock.lock();
+        try {
+            if (mStopped || mSequences.size() >= MAX_SEQUENCES) return null;
+            Sequence sequence = new Sequence(mNextId++, steps.toArray(new Step[0]), repeat,
+                    System.nanoTime());
+            mSequences.put(sequence.mId, sequence);
+            mQueue.add(sequence);
+            mChanged.signal();
+            return sequence;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stop a sequence. A step already being sent isn't taken back.
+     * @param id The ID of the sequence.
+     * @return Whether the sequence was running.
+     */
+    boolean cancel(long id) {
+        mLock.lock();
+        try {
+            Sequence sequence = mSequences.remove(id);
+            if (sequence == null) return false;
+            mQueue.remove(sequence);
+            mChanged.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** @return The running sequences in no particular order. */
+    List<Sequence> getSequences() {
+        return new ArrayList<>(mSequences.values());
+    }
+
+    /** @return The number of running sequences. */
+    int getRunningCount() {
+        return mSequences.size();
+    }
+
+    /** Stop the sequencer's thread and every sequence. */
+    void stop() {
+        mLock.lock();
+        try {
+            mStopped = true;
+            mQueue.clear();
+            mSequences.clear();
+            mChanged.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Step> due = new ArrayList<>();
+        while (!mStopped) {
+            mLock.lock();
+            try {
+                collectDueSteps(due);
+                if (due.isEmpty()) {
+                    Sequence next = mQueue.peek();
+                    if (next == null) {
+                        mChanged.await();
+                    } else {
+                        long nowNanos = System.nanoTime();
+                        mChanged.awaitNanos(Math.max(next.mDueNanos - nowNanos,
+                                budgetWaitNanos(nowNanos)));
+                    }
+                    continue;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                mLock.unlock();
+            }
+
+            // Sent without the lock held so starting or cancelling a sequence never waits on a
+            // signal's queue or a forward to another node.
+            for (Step step : due) {
+                if (!mDispatcher.test(step.mSignalId, step.mAspect)) {
+                    SignalLog.warning(step.mSignalId, "Sequence step couldn't be queued.");
+                }
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * Take every step that's due off the queue, moving their sequences on to their next steps.
+     * Must hold mLock.
+     * @param due Where to put the due steps, in the order they were due.
+     */
+    private void collectDueSteps(List<Step> due) {
+        long nowNanos = System.nanoTime();
+        Sequence next;
+        while ((next = mQueue.peek()) != null && next.mDueNanos - nowNanos <= 0
+                && budgetWaitNanos(nowNanos) <= 0) {
+            mQueue.poll();
+            due.add(next.mSteps[next.mStep]);
+            if (mBudgetNanos - nowNanos < 0) mBudgetNanos = nowNanos;
+            mBudgetNanos += STEP_INTERVAL_NANOS;
+            if (next.advance(nowNanos)) {
+                mQueue.add(next);
+            } else {
+                mSequences.remove(next.mId);
+            }
+        }
+    }
+
+    /**
+     * @param nowNanos The current time (from System.nanoTime()).
+     * @return How long until the step budget allows another step in ns; 0 or less if it does.
+     */
+    private long budgetWaitNanos(long nowNanos) {
+        return mBudgetNanos - nowNanos - (MAX_STEP_BURST - 1) * STEP_INTERVAL_NANOS;
+    }
+}
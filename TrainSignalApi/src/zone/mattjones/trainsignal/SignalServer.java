@@ -0,0 +1,723 @@
+/**
+ * File: SignalServer.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: The parts of the server signals connect to that don't depend on how sockets are serviced:
+ *       the sessions for every signal, what to do with each message a signal sends and the
+ *       public API the servlet uses. Subclasses decide which threads do the I/O and must make
+ *       sure a connection is only used by one thread at a time.
+ */
+
+package zone.mattjones.trainsignal;
+
+import zone.mattjones.trainsignal.TrainSignalMessage.MessageType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+public abstract class SignalServer {
+    /** What happened to a command someone is waiting on. */
+    public enum DeliveryResult {
+        /** The signal acknowledged the command. */
+        ACKED,
+        /** A newer command for the signal replaced this one before it was sent. */
+        SUPERSEDED,
+        /** The signal kept disconnecting before it acknowledged the command. */
+        DROPPED,
+        /** Nothing happened before the caller gave up waiting. */
+        TIMEOUT
+    }
+
+    /** The default maximum number of signals the server will keep track of. */
+    public static final int DEFAULT_MAX_SIGNALS = 1024;
+
+    /** The default number of messages that can be waiting on an ack from a signal at once. */
+    public static final int DEFAULT_ACK_WINDOW = 4;
+
+    /** How long a new connection has to identify itself before it's the default signal in ms. */
+    static final int HELLO_TIMEOUT_MS = 250;
+
+    /** How long to wait before trying to bind the server socket again in ms. */
+    static final int BIND_RETRY_MS = 5000;
+
+    /** How long a signal can be quiet before it's sent a heartbeat to check it's alive in ms. */
+    static final long HEARTBEAT_IDLE_MS = 10000;
+
+    /** The number of heartbeat timeouts in a row a signal can miss before it's considered dead. */
+    static final int MISSED_HEARTBEAT_BUDGET = 3;
+
+    /** The port for the server to run on. */
+    final int mPort;
+
+    /** The number of messages that can be waiting on an ack from each signal at once. */
+    final int mAckWindow;
+
+    /** The maximum number of signals the server will keep track of. */
+    private final int mMaxSignals;
+
+    /** All of the signals that have connected to the server, keyed by signal ID. */
+    final ConcurrentHashMap<String, SignalSession> mSessions;
+
+    /**
+     * Sessions holding commands for signals that haven't connected yet, least recently used
+     * first. Bounded, so commands for made up IDs can't use up the room for real signals. A
+     * session moves to mSessions when its signal connects. Guarded by itself.
+     */
+    private final LinkedHashMap<String, SignalSession> mUnboundSessions;
+
+    /** Counters and latencies for every stage a command goes through. */
+    private final SignalMetrics mMetrics;
+
+    /** Sends changes to signal states to anything subscribed to them. */
+    private final SignalStateBroadcaster mStateBroadcaster;
+
+    /** Records accepted commands and acks so they survive a restart, or null if disabled. */
+    private volatile SignalJournal mJournal;
+
+    /** Forwards commands for signals connected to other nodes, or null if not clustered. */
+    private volatile SignalCluster mCluster;
+
+    /** Checks on every connected signal and sends heartbeats to the idle ones. */
+    private final HeartbeatWheel mHeartbeats;
+
+    /** Holds state commands until each signal is done changing and it's its turn. */
+    private final ActuationScheduler mActuations;
+
+    /** Runs timed sequences of signal changes. */
+    private final SignalSequencer mSequencer;
+
+    /** How long new signals are assumed to take to change until they report otherwise in ms. */
+    private volatile long mActuationMs;
+
+    /**
+     * @param serverPort The port for the server to run on.
+     * @param ackWindow The number of messages that can be waiting on an ack from each signal at
+     *                  once. 1 means each message waits for the previous one to be acknowledged.
+     * @param maxSignals The maximum number of signals the server will keep track of.
+     */
+    SignalServer(int serverPort, int ackWindow, int maxSignals) {
+        if (ackWindow < 1) {
+            throw new IllegalArgumentException("Ack window must be at least 1!");
+        }
+        if (maxSignals < 1) {
+            throw new IllegalArgumentException("Max signals must be at least 1!");
+        }
+        mPort = serverPort;
+        mAckWindow = ackWindow;
+        mMaxSignals = maxSignals;
+        mSessions = new ConcurrentHashMap<>();
+        mUnboundSessions = new LinkedHashMap<String, SignalSession>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SignalSession> eldest) {
+                if (size() <= mMaxSignals) return false;
+                eldest.getValue().dropPendingCommand();
+                return true;
+            }
+        };
+        mMetrics = new SignalMetrics();
+        mStateBroadcaster = new SignalStateBroadcaster(this);
+        mHeartbeats = new HeartbeatWheel(this::checkHeartbeat);
+        mActuations = new ActuationScheduler(this::requestFlush);
+        mSequencer = new SignalSequencer(this::addMessage);
+        mActuationMs = ActuationScheduler.DEFAULT_ACTUATION_MS;
+    }
+
+    /**
+     * Get a session's connection to send the messages queued for it. Called whenever a message
+     * is added for a connected signal.
+     * @param session The session with new messages.
+     */
+    abstract void requestFlush(SignalSession session);
+
+    /**
+     * Cause the server to close all connections and reopen the server socket.
+     * @throws IOException
+     */
+    public abstract void resetServer() throws IOException;
+
+    /**
+     * Stops the server socket and all of the server's threads. Subclasses must call through.
+     * @throws IOException
+     */
+    public void killServer() throws IOException {
+        mStateBroadcaster.stop();
+        mHeartbeats.stop();
+        mActuations.stop();
+        mSequencer.stop();
+    }
+
+    /**
+     * Decide whether a connection needs a heartbeat and when to look at it next. Signals that
+     * have sent anything recently are left alone, so a busy signal never sees a ping. An idle one
+     * is pinged and given an RTT based timeout to answer; any traffic counts as an answer. A
+     * signal still working through a command isn't counted against, but one that misses
+     * MISSED_HEARTBEAT_BUDGET timeouts in a row otherwise is dropped. Runs on the wheel's thread,
+     * which doesn't own the connection, so a dead one is only marked and left to its owner to
+     * close.
+     * @param connection The connection to check.
+     * @param nowMs The current time in ms.
+     * @return The time (ms) to check the connection again or 0 if it's gone.
+     */
+    private long checkHeartbeat(SignalConnection connection, long nowMs) {
+        SignalSession session = connection.getSession();
+        if (!connection.isOpen() || session == null || session.getConnection() != connection) {
+            return 0;
+        }
+
+        long lastReadMs = connection.getLastReadMs();
+        long sentMs = connection.getHeartbeatSentMs();
+        if (sentMs != 0) {
+            if (lastReadMs >= sentMs) {
+                connection.setHeartbeatSentMs(0);
+            } else if (connection.hasCommandInFlight()) {
+                // The command has its own ack deadline; a slow signal isn't a dead one.
+                return nowMs + connection.getHeartbeatTimeoutMs();
+            } else if (connection.missHeartbeat() >= MISSED_HEARTBEAT_BUDGET) {
+                SignalLog.error(session.getSignalId(), "Missed " + MISSED_HEARTBEAT_BUDGET
+                        + " heartbeats, dropping " + connection + ".");
+                mMetrics.recordHeartbeatTimeout();
+                connection.markDead();
+                requestFlush(session);
+                return 0;
+            } else {
+                return nowMs + connection.getHeartbeatTimeoutMs();
+            }
+        }
+
+        if (nowMs < lastReadMs + HEARTBEAT_IDLE_MS) return lastReadMs + HEARTBEAT_IDLE_MS;
+
+        connection.setHeartbeatSentMs(nowMs);
+        addMessage(session.getSignalId(), TrainSignalMessage.ACK_MESSAGE);
+        return nowMs + connection.getHeartbeatTimeoutMs();
+    }
+
+    /**
+     * Handle a complete message read from a signal. The caller must own the connection.
+     * @param connection The connection the message was read from.
+     * @param decoder The connection's decoder, positioned on the message.
+     */
+    void handleMessage(SignalConnection connection, SignalFrameDecoder decoder)
+            throws IOException {
+        // Answer in whichever protocol the signal last spoke.
+        connection.setProtocolVersion(decoder.getVersion());
+        connection.setLastReadMs(System.currentTimeMillis());
+
+        if (connection.getSession() == null) {
+            String signalId = decoder.parseHelloMessage();
+            bindConnection(connection,
+                    signalId != null ? signalId : TrainSignalMessage.DEFAULT_SIGNAL_ID);
+            if (signalId != null) return;
+        }
+
+        if (decoder.getVersion() == 0) {
+            if (!decoder.isAckMessage()) {
+                throw new IOException("Received unexpected message from signal!");
+            }
+            handleAck(connection, -1);
+            return;
+        }
+
+        SignalSession session = connection.getSession();
+        if (!decoder.isSignalIdEmptyOrEqual(session.getSignalIdBytes())) {
+            throw new IOException("Received frame for another signal!");
+        }
+
+        MessageType type = decoder.getType();
+        if (type == null) {
+            throw new IOException("Received frame of unknown type from signal!");
+        }
+        switch (type) {
+            case ACK:
+                handleAck(connection, decoder.getSequence());
+                break;
+            case PING:
+                connection.sendAck(decoder.getSequence());
+                connection.flush();
+                break;
+            case STATUS:
+                if (decoder.getPayloadLength() > 0) {
+                    // This also teaches the session how long the signal takes to change.
+                    long settleNanos = session.setReportedState(decoder.getPayloadByte(0));
+                    if (settleNanos >= 0) mMetrics.getAckToSettle().record(settleNanos);
+                }
+                break;
+            case HELLO:
+            case TELEMETRY:
+                // Nothing is done with these yet.
+                break;
+            default:
+                throw new IOException("Received unexpected " + type + " frame from signal!");
+        }
+    }
+
+    /**
+     * Handle an ack from a signal and send it more messages if any are waiting.
+     * @param connection The connection the ack was read from.
+     * @param sequence The sequence number the ack carried or -1 for a legacy ack.
+     */
+    private void handleAck(SignalConnection connection, int sequence) throws IOException {
+        long nowMs = System.currentTimeMillis();
+        SignalCommand message = connection.onAck(nowMs, sequence);
+        if (message != null) {
+            long nowNanos = System.nanoTime();
+            mMetrics.recordAck(message, nowNanos);
+            // Commands are only written once the signal is done changing, so they're acked as
+            // promptly as pings and make just as good a round trip sample.
+            if (message.getWrittenNanos() != 0) {
+                connection.recordRoundTrip(nowNanos - message.getWrittenNanos());
+            }
+            SignalSession session = connection.getSession();
+            session.recordAck(message, nowMs);
+            SignalJournal journal = mJournal;
+            if (journal != null && !message.isPing()) {
+                SignalAspect aspect = SignalAspect.fromMessage(message.getMessage());
+                if (aspect != null) journal.recordAck(session.getSignalIdBytes(), aspect);
+            }
+            message.complete(DeliveryResult.ACKED);
+            flushConnection(connection);
+        }
+    }
+
+    /**
+     * Bind a connection to the session for a signal, dropping any existing connection for it.
+     * The caller must own the connection.
+     * @param connection The newly identified connection.
+     * @param signalId The ID of the signal on the other end of the connection.
+     */
+    void bindConnection(SignalConnection connection, String signalId) throws IOException {
+        connection.setDeadlineMs(0);
+
+        SignalSession session = getOrCreateSession(signalId);
+        if (session == null) {
+            throw new IOException("Too many signals connected!");
+        }
+
+        SignalConnection existing = session.getConnection();
+        if (existing != null) {
+            SignalLog.info(signalId, "Reconnected, dropping " + existing + ".");
+            closeConnection(existing);
+        }
+
+        connection.setSession(session);
+        session.setConnection(connection);
+        SignalCluster cluster = mCluster;
+        if (cluster != null) cluster.claim(signalId);
+        long nowMs = System.currentTimeMillis();
+        connection.setLastReadMs(nowMs);
+        mHeartbeats.schedule(connection, nowMs + HEARTBEAT_IDLE_MS);
+        flushConnection(connection);
+    }
+
+    /**
+     * Write as many messages queued for a connection's session as its ack window allows. Only one
+     * state command is in flight at a time, and only once the signal is done changing to the
+     * last one and the actuation scheduler says it's its turn, so the rest keep coalescing in
+     * the session. The caller must own the connection.
+     * @param connection The connection to write to.
+     */
+    void flushConnection(SignalConnection connection) {
+        if (connection.isDead()) {
+            closeConnection(connection);
+            return;
+        }
+
+        SignalSession session = connection.getSession();
+        if (session == null || !connection.canSend()) return;
+
+        long nowMs = System.currentTimeMillis();
+        boolean commandAllowed = !connection.hasCommandInFlight() && session.hasPendingCommand()
+                && mActuations.tryStart(session, nowMs);
+        boolean sent = false;
+        SignalCommand message;
+        while (connection.canSend() && (message = session.pollMessage(
+                commandAllowed && !connection.hasCommandInFlight())) != null) {
+            connection.send(message, nowMs);
+            mMetrics.recordWrite(message, session.getReleasedNanos());
+            sent = true;
+        }
+        if (!sent) return;
+
+        try {
+            connection.flush();
+        } catch (IOException ex) {
+            SignalLog.error(signalIdOf(connection), "Failed to write to " + connection + ": "
+                    + ex.getMessage());
+            closeConnection(connection);
+        }
+    }
+
+    /**
+     * Close a connection and unbind it from its session. The caller must own the connection;
+     * servers whose connections are owned by more than one thread, so where the caller may not,
+     * override this to take ownership first.
+     * @param connection The connection to close.
+     */
+    void closeConnection(SignalConnection connection) {
+        connection.close();
+        SignalSession session = connection.getSession();
+        if (session != null && session.getConnection() == connection) {
+            session.setConnection(null);
+            SignalCluster cluster = mCluster;
+            if (cluster != null) cluster.release(session.getSignalId());
+        }
+    }
+
+    /**
+     * @param connection A signal connection.
+     * @return The ID of the signal on the other end for logging or null if it's unidentified.
+     */
+    static String signalIdOf(SignalConnection connection) {
+        SignalSession session = connection.getSession();
+        return session == null ? null : session.getSignalId();
+    }
+
+    /**
+     * Get the session for a signal that's connecting, creating it if it doesn't exist yet. Any
+     * commands held for the signal before it connected are carried over.
+     * @param signalId The ID of the signal.
+     * @return The signal's session or null if the ID is invalid or there are too many signals.
+     */
+    SignalSession getOrCreateSession(String signalId) {
+        if (!TrainSignalMessage.isValidSignalId(signalId)) return null;
+
+        SignalSession session = mSessions.get(signalId);
+        if (session != null) return session;
+
+        if (mSessions.size() >= mMaxSignals) {
+            SignalLog.error(signalId, "Too many signals! Ignoring signal.");
+            return null;
+        }
+        synchronized (mUnboundSessions) {
+            SignalSession unbound = mUnboundSessions.remove(signalId);
+            return mSessions.computeIfAbsent(signalId,
+                    (id) -> unbound != null ? unbound : newSession(id));
+        }
+    }
+
+    /**
+     * Get the session to queue a command for a signal in. A signal that has never connected gets
+     * a session that's only held until commands for too many other such signals push it out.
+     * @param signalId The ID of the signal.
+     * @return The signal's session or null if the ID is invalid.
+     */
+    private SignalSession getCommandSession(String signalId) {
+        if (!TrainSignalMessage.isValidSignalId(signalId)) return null;
+
+        SignalSession session = mSessions.get(signalId);
+        if (session != null) return session;
+
+        synchronized (mUnboundSessions) {
+            // Check again so a signal connecting right now isn't given a second session.
+            session = mSessions.get(signalId);
+            if (session != null) return session;
+            return mUnboundSessions.computeIfAbsent(signalId, this::newSession);
+        }
+    }
+
+    /**
+     * @param signalId The ID of a signal.
+     * @return A new session for the signal.
+     */
+    private SignalSession newSession(String signalId) {
+        SignalSession session = new SignalSession(signalId, mStateBroadcaster::publish);
+        session.setActuationMs(mActuationMs);
+        return session;
+    }
+
+    /**
+     * Share signals with other nodes. Signals already connected are claimed, and from now on
+     * commands for signals connected to other nodes are forwarded to them.
+     * @param cluster The cluster this node is part of.
+     */
+    void joinCluster(SignalCluster cluster) {
+        mCluster = cluster;
+        for (SignalSession session : mSessions.values()) {
+            if (session.isConnected()) cluster.claim(session.getSignalId());
+        }
+    }
+
+    /**
+     * Add a message to the queue for the default signal.
+     * @param message The message to send to the client.
+     * @return Whether the operation was successful.
+     */
+    public boolean addMessage(byte[] message) {
+        return addMessage(TrainSignalMessage.DEFAULT_SIGNAL_ID, message);
+    }
+
+    /**
+     * Add a message to the queue for a signal. If the signal is connected, the message is sent
+     * immediately.
+     * @param signalId The ID of the signal to send the message to.
+     * @param message The message to send to the signal.
+     * @return Whether the operation was successful.
+     */
+    public boolean addMessage(String signalId, byte[] message) {
+        return addCommand(signalId, new SignalCommand(message));
+    }
+
+    /**
+     * Add a command to change a signal's aspect to the signal's queue and track what happens to
+     * it. The result is reported from whichever thread learns it, so anything waiting on it
+     * shouldn't do slow work on that thread.
+     * @param signalId The ID of the signal to change.
+     * @param aspect The aspect the signal should show.
+     * @return Completed with what happened to the command or null if it couldn't be queued.
+     */
+    public CompletableFuture<DeliveryResult> addTrackedMessage(String signalId,
+            SignalAspect aspect) {
+        SignalCommand command = new SignalCommand(aspect.getMessage(), true);
+        return addCommand(signalId, command) ? command.getDelivery() : null;
+    }
+
+    /**
+     * Add commands for many signals at once. Everything is queued before any connection is
+     * asked to write, so each signal's socket gets a single write for the whole batch.
+     * @param aspects The aspect each signal should show, keyed by signal ID.
+     * @return Whether each command was queued, keyed by signal ID in the same order.
+     */
+    public Map<String, Boolean> addMessages(Map<String, SignalAspect> aspects) {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        for (Map.Entry<String, SignalCommand> entry : addCommands(aspects, false).entrySet()) {
+            results.put(entry.getKey(), entry.getValue() != null);
+        }
+        return results;
+    }
+
+    /**
+     * Add commands for many signals at once and track what happens to each one. See
+     * {@link #addMessages(Map)} and {@link #addTrackedMessage(String, SignalAspect)}.
+     * @param aspects The aspect each signal should show, keyed by signal ID.
+     * @return What happened to each command, keyed by signal ID in the same order. The value is
+     *         null if the command couldn't be queued.
+     */
+    public Map<String, CompletableFuture<DeliveryResult>> addTrackedMessages(
+            Map<String, SignalAspect> aspects) {
+        Map<String, CompletableFuture<DeliveryResult>> results = new LinkedHashMap<>();
+        for (Map.Entry<String, SignalCommand> entry : addCommands(aspects, true).entrySet()) {
+            SignalCommand command = entry.getValue();
+            results.put(entry.getKey(), command == null ? null : command.getDelivery());
+        }
+        return results;
+    }
+
+    /**
+     * @param aspects The aspect each signal should show, keyed by signal ID.
+     * @param tracked Whether the commands should be tracked.
+     * @return The command queued for each signal or null if it couldn't be queued.
+     */
+    private Map<String, SignalCommand> addCommands(Map<String, SignalAspect> aspects,
+            boolean tracked) {
+        Map<String, SignalCommand> commands = new LinkedHashMap<>();
+        List<SignalSession> connectedSessions = new ArrayList<>(aspects.size());
+        for (Map.Entry<String, SignalAspect> entry : aspects.entrySet()) {
+            SignalCommand command = new SignalCommand(entry.getValue().getMessage(), tracked);
+            if (forwardCommand(entry.getKey(), command)) {
+                commands.put(entry.getKey(), command);
+                continue;
+            }
+            SignalSession session = queueCommand(entry.getKey(), command);
+            commands.put(entry.getKey(), session != null ? command : null);
+            if (session != null && session.isConnected()) connectedSessions.add(session);
+        }
+        for (SignalSession session : connectedSessions) {
+            requestFlush(session);
+        }
+        return commands;
+    }
+
+    /**
+     * @param signalId The ID of the signal to send the command to.
+     * @param command The command to send to the signal.
+     * @return Whether the operation was successful.
+     */
+    private boolean addCommand(String signalId, SignalCommand command) {
+        return forwardCommand(signalId, command) || addLocalCommand(signalId, command);
+    }
+
+    /**
+     * Add a command to this node's queue for a signal even if another node owns it. Used for
+     * commands other nodes forward here.
+     * @param signalId The ID of the signal to send the command to.
+     * @param command The command to send to the signal.
+     * @return Whether the operation was successful.
+     */
+    boolean addLocalCommand(String signalId, SignalCommand command) {
+        SignalSession session = queueCommand(signalId, command);
+        if (session == null) return false;
+
+        if (session.isConnected()) requestFlush(session);
+        return true;
+    }
+
+    /**
+     * @param signalId The ID of the signal to send the command to.
+     * @param command The command to send to the signal.
+     * @return Whether another node owns the signal and the command was forwarded to it.
+     */
+    private boolean forwardCommand(String signalId, SignalCommand command) {
+        SignalCluster cluster = mCluster;
+        return cluster != null && !command.isPing() && cluster.forward(signalId, command);
+    }
+
+    /**
+     * Add a command to a signal's queue without asking its connection to write it.
+     * @param signalId The ID of the signal to send the command to.
+     * @param command The command to send to the signal.
+     * @return The signal's session or null if the command couldn't be queued.
+     */
+    private SignalSession queueCommand(String signalId, SignalCommand command) {
+        SignalSession session = getCommandSession(signalId);
+        boolean queued = session != null && session.addMessage(command);
+        mMetrics.recordQueued(queued);
+        if (!queued) return null;
+        if (!command.isPing()) {
+            SignalAspect aspect = SignalAspect.fromMessage(command.getMessage());
+            session.setDesiredAspect(aspect);
+            // Only signals that have connected are journaled, so restoring after a restart
+            // can't fill the server with sessions for made up IDs.
+            SignalJournal journal = mJournal;
+            if (journal != null && aspect != null && mSessions.get(signalId) == session) {
+                journal.recordCommand(session.getSignalIdBytes(), aspect);
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Restore the state recovered from a journal and start journaling to it. Each signal's last
+     * desired aspect is queued so it's sent as soon as the signal (re)connects.
+     * @param journal The journal to restore from and record to.
+     */
+    void restoreFrom(SignalJournal journal) {
+        for (SignalJournal.RecoveredState state : journal.getRecoveredStates()) {
+            SignalSession session = getOrCreateSession(state.mSignalId);
+            if (session == null) continue;
+            if (state.mAckedAspect != null) session.restoreAckedAspect(state.mAckedAspect);
+            if (state.mDesiredAspect != null) {
+                addMessage(state.mSignalId, state.mDesiredAspect);
+            }
+        }
+        mJournal = journal;
+        journal.start(this::getSignalStates);
+    }
+
+    /**
+     * Add a command to change a signal's aspect to the signal's queue.
+     * @param signalId The ID of the signal to change.
+     * @param aspect The aspect the signal should show.
+     * @return Whether the operation was successful.
+     */
+    public boolean addMessage(String signalId, SignalAspect aspect) {
+        return addMessage(signalId, aspect.getMessage());
+    }
+
+    /**
+     * @param actuationMs How long signals are assumed to take to change after acking a command
+     *                    until they report otherwise in ms. Only applies to signals the server
+     *                    hasn't seen yet.
+     */
+    public void setActuationMs(long actuationMs) {
+        mActuationMs = Math.max(0, actuationMs);
+    }
+
+    /**
+     * @param staggerMs The least time between two signals starting to change in ms, or 0 to
+     *                  let every signal change as soon as it's ready.
+     */
+    public void setActuationStaggerMs(long staggerMs) {
+        mActuations.setStaggerMs(staggerMs);
+    }
+
+    /**
+     * Estimate how long a command sent to a signal now would take to show, counting the time
+     * for the signal to finish its current change, wait its turn, ack and change.
+     * @param signalId The ID of a signal.
+     * @return The estimate in ms or -1 if the signal isn't connected to this node.
+     */
+    public long estimateTimeToDisplayMs(String signalId) {
+        SignalSession session = signalId == null ? null : mSessions.get(signalId);
+        if (session == null) return -1;
+        return mActuations.estimateTimeToDisplayMs(session, System.currentTimeMillis());
+    }
+
+    /**
+     * Estimate how long commands sent to several signals now would take to all show. They're
+     * staggered behind each other on top of the time for the slowest signal.
+     * @param signalIds The IDs of the signals.
+     * @return The estimate in ms or -1 if none of the signals are connected to this node.
+     */
+    public long estimateTimeToDisplayMs(Collection<String> signalIds) {
+        long etaMs = -1;
+        for (String signalId : signalIds) {
+            etaMs = Math.max(etaMs, estimateTimeToDisplayMs(signalId));
+        }
+        if (etaMs < 0) return etaMs;
+        return etaMs + mActuations.getStaggerMs() * (signalIds.size() - 1);
+    }
+
+    /** @return Holds state commands until each signal is done changing and it's its turn. */
+    ActuationScheduler getActuationScheduler() {
+        return mActuations;
+    }
+
+    /** @return Runs timed sequences of signal changes. */
+    SignalSequencer getSequencer() {
+        return mSequencer;
+    }
+
+    /**
+     * @param signalId The ID of a signal.
+     * @return Whether the signal is currently connected.
+     */
+    public boolean isSignalConnected(String signalId) {
+        if (signalId == null) return false;
+        SignalSession session = mSessions.get(signalId);
+        return session != null && session.isConnected();
+    }
+
+    /**
+     * @param signalId The ID of a signal.
+     * @return The latest snapshot of the signal's state or null if the signal is unknown.
+     */
+    SignalState getSignalState(String signalId) {
+        if (signalId == null) return null;
+        SignalSession session = mSessions.get(signalId);
+        return session == null ? null : session.getState();
+    }
+
+    /** @return The latest snapshot of every signal's state. */
+    List<SignalState> getSignalStates() {
+        List<SignalState> states = new ArrayList<>(mSessions.size());
+        for (SignalSession session : mSessions.values()) {
+            states.add(session.getState());
+        }
+        return states;
+    }
+
+    /** @return The session for every signal the server knows about. */
+    Collection<SignalSession> getSessions() {
+        return mSessions.values();
+    }
+
+    /** @return Sends changes to signal states to anything subscribed to them. */
+    SignalStateBroadcaster getStateBroadcaster() {
+        return mStateBroadcaster;
+    }
+
+    /** @return Counters and latencies for every stage a command goes through. */
+    SignalMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** @return The time from a message being added to it being handed to a signal's socket. */
+    public LatencyHistogram getEnqueueToWriteLatency() {
+        return mMetrics.getEnqueueToWrite();
+    }
+}
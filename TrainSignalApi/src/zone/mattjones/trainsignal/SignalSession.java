@@ -0,0 +1,341 @@
+/**
+ * File: SignalSession.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: The server side state for a single signal, keyed by the ID the signal identified itself
+ *       with. A session outlives the connections made by the signal so commands sent while the
+ *       signal is reconnecting are not lost.
+ *
+ *       Only the latest state command is kept: each one replaces any that hasn't been sent yet,
+ *       so a signal that is busy changing (or disconnected) goes straight to the last state asked
+ *       for instead of working through every intermediate one. Pings are queued separately so
+ *       they're never lost to a state command or vice versa.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import zone.mattjones.trainsignal.SignalServer.DeliveryResult;
+
+class SignalSession {
+    /** The maximum number of pings that can be queued up for a signal. */
+    private static final int MAX_QUEUE_SIZE = 5;
+
+    /**
+     * The most times an unacknowledged command is carried over to the signal's next connection.
+     * A command that keeps knocking the signal offline is eventually given up on.
+     */
+    private static final int MAX_HAND_OFFS = 3;
+
+    /** The ID of the signal this session is for. */
+    private final String mSignalId;
+
+    /** The ASCII bytes of the signal ID, for writing version 1 frames. */
+    private final byte[] mSignalIdBytes;
+
+    /** The latest state command that hasn't been sent to the signal yet or null if none. */
+    private final AtomicReference<SignalCommand> mPendingCommand;
+
+    /** Pings waiting to be sent to the signal. */
+    private final ConcurrentLinkedQueue<SignalCommand> mPings;
+
+    /** The number of state commands replaced by a newer one before they were sent. */
+    private final AtomicLong mCoalescedCount;
+
+    /** Whether the session is already waiting for the handler thread to flush it. */
+    private final AtomicBoolean mFlushPending;
+
+    /**
+     * The connection currently bound to this session or null if the signal is disconnected. This
+     * is only changed by the thread that owns the connection being bound or unbound.
+     */
+    private volatile SignalConnection mConnection;
+
+    /** The latest snapshot of the signal's state for readers that don't touch the signal. */
+    private final AtomicReference<SignalState> mState;
+
+    /** Told about acknowledged aspect and connection changes or null if nothing listens. */
+    private final Consumer<SignalState> mStateListener;
+
+    /** The last state byte the signal reported in a status frame or 0 if it never has. */
+    private volatile byte mReportedState;
+
+    /** The number of times the signal has connected. */
+    private final AtomicLong mConnectCount;
+
+    /** The state byte of the last state command the signal acked or 0 if it never has. */
+    private volatile byte mAckedState;
+
+    /**
+     * The time (from System.nanoTime()) the signal acked mAckedState or 0 if it has already
+     * reported settling into it.
+     */
+    private volatile long mAckedStateNanos;
+
+    /** How long the signal takes to change after acking a command in ms. */
+    private volatile long mActuationMs;
+
+    /** The time (ms) the signal is done changing to the last command it acked. */
+    private volatile long mBusyUntilMs;
+
+    /** Where the signal is in the actuation scheduler (IDLE, QUEUED or GRANTED). */
+    private final AtomicInteger mActuationState;
+
+    /** The time (from System.nanoTime()) the scheduler last let the signal start changing. */
+    private volatile long mReleasedNanos;
+
+    /** @param signalId The ID of the signal this session is for. */
+    SignalSession(String signalId) {
+        this(signalId, null);
+    }
+
+    /**
+     * @param signalId The ID of the signal this session is for.
+     * @param stateListener Told about acknowledged aspect and connection changes; may be null.
+     */
+    SignalSession(String signalId, Consumer<SignalState> stateListener) {
+        mSignalId = signalId;
+        mStateListener = stateListener;
+        mSignalIdBytes = signalId.getBytes(StandardCharsets.US_ASCII);
+        mPendingCommand = new AtomicReference<>();
+        mPings = new ConcurrentLinkedQueue<>();
+        mCoalescedCount = new AtomicLong();
+        mConnectCount = new AtomicLong();
+        mState = new AtomicReference<>(new SignalState(signalId));
+        mFlushPending = new AtomicBoolean();
+        mActuationMs = ActuationScheduler.DEFAULT_ACTUATION_MS;
+        mActuationState = new AtomicInteger(ActuationScheduler.IDLE);
+        mReleasedNanos = System.nanoTime();
+    }
+
+    /** @return The ID of the signal this session is for. */
+    String getSignalId() {
+        return mSignalId;
+    }
+
+    /** @return The ASCII bytes of the signal ID. */
+    byte[] getSignalIdBytes() {
+        return mSignalIdBytes;
+    }
+
+    /** @return The last state byte the signal reported or 0 if it never has. */
+    byte getReportedState() {
+        return mReportedState;
+    }
+
+    /**
+     * @param state The state byte the signal reported in a status frame.
+     * @return The time in ns since the signal acked the command for this state if this is the
+     *         first report of it, otherwise -1.
+     */
+    long setReportedState(byte state) {
+        mReportedState = state;
+        long ackedNanos = mAckedStateNanos;
+        if (ackedNanos == 0 || state != mAckedState) return -1;
+        mAckedStateNanos = 0;
+        long settleNanos = System.nanoTime() - ackedNanos;
+        // Follow the signal's real actuation time, smoothed so one slow change doesn't count
+        // for much.
+        mActuationMs += (TimeUnit.NANOSECONDS.toMillis(settleNanos) - mActuationMs) / 4;
+        return settleNanos;
+    }
+
+    /** @return How long the signal takes to change after acking a command in ms. */
+    long getActuationMs() {
+        return mActuationMs;
+    }
+
+    /** @param actuationMs How long the signal takes to change after acking a command in ms. */
+    void setActuationMs(long actuationMs) {
+        mActuationMs = actuationMs;
+    }
+
+    /** @return The time (ms) the signal is done changing to the last command it acked. */
+    long getBusyUntilMs() {
+        return mBusyUntilMs;
+    }
+
+    /** @return Where the signal is in the actuation scheduler. */
+    int getActuationState() {
+        return mActuationState.get();
+    }
+
+    /**
+     * @param expected The state the signal should be in.
+     * @param state The state to move the signal to.
+     * @return Whether the signal was in the expected state and was moved.
+     */
+    boolean compareAndSetActuationState(int expected, int state) {
+        return mActuationState.compareAndSet(expected, state);
+    }
+
+    /** @return The time (from System.nanoTime()) the signal was last let start changing. */
+    long getReleasedNanos() {
+        return mReleasedNanos;
+    }
+
+    /** @param releasedNanos The time (from System.nanoTime()) the signal was let start changing. */
+    void setReleasedNanos(long releasedNanos) {
+        mReleasedNanos = releasedNanos;
+    }
+
+    /** @return The connection bound to this session or null if the signal is disconnected. */
+    SignalConnection getConnection() {
+        return mConnection;
+    }
+
+    /** @param connection The connection to bind to this session, or null to unbind. */
+    void setConnection(SignalConnection connection) {
+        mConnection = connection;
+        boolean connected = connection != null;
+        if (connected) mConnectCount.incrementAndGet();
+        SignalState previous = mState.getAndUpdate((state) ->
+                state.isConnected() == connected ? state : state.withConnected(connected));
+        if (previous.isConnected() != connected) notifyStateListener();
+    }
+
+    /** @return The latest snapshot of the signal's state. */
+    SignalState getState() {
+        return mState.get();
+    }
+
+    /** @param aspect The aspect most recently asked for. */
+    void setDesiredAspect(SignalAspect aspect) {
+        mState.updateAndGet((state) -> state.withDesiredAspect(aspect));
+    }
+
+    /**
+     * Record an ack from the signal in its state.
+     * @param message The message that was acknowledged.
+     * @param ackMs The time (ms since the epoch) of the ack.
+     */
+    void recordAck(SignalCommand message, long ackMs) {
+        SignalAspect aspect =
+                message.isPing() ? null : SignalAspect.fromMessage(message.getMessage());
+        if (aspect != null) {
+            mAckedState = aspect.getStateByte();
+            mAckedStateNanos = System.nanoTime();
+            mBusyUntilMs = ackMs + mActuationMs;
+        }
+        SignalState previous = mState.getAndUpdate((state) -> state.withAck(aspect, ackMs));
+        // Acks for pings only change the ack time, which isn't worth telling anyone about.
+        if (aspect != null && aspect != previous.getAckedAspect()) notifyStateListener();
+    }
+
+    /**
+     * Restore the aspect the signal last acknowledged before the server restarted.
+     * @param aspect The aspect.
+     */
+    void restoreAckedAspect(SignalAspect aspect) {
+        mState.updateAndGet((state) -> state.withAck(aspect, state.getLastAckMs()));
+    }
+
+    /** Tell the state listener about the latest state. */
+    private void notifyStateListener() {
+        if (mStateListener != null) mStateListener.accept(mState.get());
+    }
+
+    /** @return Whether a signal is currently connected for this session. */
+    boolean isConnected() {
+        return mConnection != null;
+    }
+
+    /**
+     * Add a message to the queue for this signal. A state command replaces any state command
+     * that hasn't been sent yet.
+     * @param message The message to send to the signal.
+     * @return Whether the operation was successful.
+     */
+    boolean addMessage(SignalCommand message) {
+        if (!message.isPing()) {
+            SignalCommand replaced = mPendingCommand.getAndSet(message);
+            if (replaced != null) {
+                mCoalescedCount.incrementAndGet();
+                replaced.complete(DeliveryResult.SUPERSEDED);
+            }
+            return true;
+        }
+
+        if (mPings.size() >= MAX_QUEUE_SIZE) {
+            SignalLog.warning(mSignalId, "Ping queue size exceeded! Ignoring ping...");
+            return false;
+        }
+
+        mPings.add(message);
+        return true;
+    }
+
+    /**
+     * Take back a state command that was written to a connection that was lost before the
+     * signal acknowledged it, so it's the first thing sent when the signal reconnects. A newer
+     * command queued in the meantime wins instead.
+     * @param message The unacknowledged command.
+     * @return Whether the command was taken back; if not the caller should report it dropped.
+     */
+    boolean handOff(SignalCommand message) {
+        if (message.incrementHandOffCount() > MAX_HAND_OFFS) return false;
+        if (!mPendingCommand.compareAndSet(null, message)) {
+            mCoalescedCount.incrementAndGet();
+            message.complete(DeliveryResult.SUPERSEDED);
+        }
+        return true;
+    }
+
+    /**
+     * @param includeCommand Whether a state command can be returned. Pings are always returned
+     *                       first.
+     * @return The next message to send to the signal or null if there are none.
+     */
+    SignalCommand pollMessage(boolean includeCommand) {
+        SignalCommand ping = mPings.poll();
+        if (ping != null || !includeCommand) return ping;
+        return mPendingCommand.getAndSet(null);
+    }
+
+    /** Give up on the state command waiting to be sent, if there is one. */
+    void dropPendingCommand() {
+        SignalCommand message = mPendingCommand.getAndSet(null);
+        if (message != null) message.complete(DeliveryResult.DROPPED);
+    }
+
+    /** @return Whether a state command is waiting to be sent. */
+    boolean hasPendingCommand() {
+        return mPendingCommand.get() != null;
+    }
+
+    /** @return The number of state commands replaced by a newer one before they were sent. */
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /** @return The number of times the signal has connected. */
+    long getConnectCount() {
+        return mConnectCount.get();
+    }
+
+    /** @return The number of messages waiting to be sent to the signal. */
+    int getQueueDepth() {
+        return mPings.size() + (mPendingCommand.get() != null ? 1 : 0);
+    }
+
+    /**
+     * Mark the session as needing a flush by the handler thread.
+     * @return Whether the session wasn't already waiting on a flush.
+     */
+    boolean markFlushPending() {
+        return mFlushPending.compareAndSet(false, true);
+    }
+
+    /** Clear the flush marker. Called by the handler thread right before flushing. */
+    void clearFlushPending() {
+        mFlushPending.set(false);
+    }
+}
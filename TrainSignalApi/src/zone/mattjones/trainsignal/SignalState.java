@@ -0,0 +1,134 @@
+/**
+ * File: SignalState.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: An immutable snapshot of what the server knows about a signal. Every change produces a
+ *       new snapshot with a higher version, so readers never need a lock and the version can be
+ *       used as an ETag. The JSON for a snapshot is built the first time it's asked for and then
+ *       reused by every request that sees the same snapshot.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.nio.charset.StandardCharsets;
+
+class SignalState {
+    /** The ID of the signal. */
+    private final String mSignalId;
+
+    /** Increases with every change to the signal's state. */
+    private final long mVersion;
+
+    /** The aspect most recently asked for or null if none has been. */
+    private final SignalAspect mDesiredAspect;
+
+    /** The aspect the signal most recently acknowledged or null if it hasn't acked one. */
+    private final SignalAspect mAckedAspect;
+
+    /** Whether the signal is connected. */
+    private final boolean mConnected;
+
+    /** The time (ms since the epoch) of the last ack or 0 if there hasn't been one. */
+    private final long mLastAckMs;
+
+    /** The JSON for this snapshot; built lazily. Racing builds produce identical bytes. */
+    private volatile byte[] mJson;
+
+    /** @param signalId The ID of the signal. */
+    SignalState(String signalId) {
+        this(signalId, 0, null, null, false, 0);
+    }
+
+    private SignalState(String signalId, long version, SignalAspect desiredAspect,
+            SignalAspect ackedAspect, boolean connected, long lastAckMs) {
+        mSignalId = signalId;
+        mVersion = version;
+        mDesiredAspect = desiredAspect;
+        mAckedAspect = ackedAspect;
+        mConnected = connected;
+        mLastAckMs = lastAckMs;
+    }
+
+    /**
+     * @param aspect The aspect most recently asked for.
+     * @return A new snapshot with the desired aspect changed.
+     */
+    SignalState withDesiredAspect(SignalAspect aspect) {
+        return new SignalState(mSignalId, mVersion + 1, aspect, mAckedAspect, mConnected,
+                mLastAckMs);
+    }
+
+    /**
+     * @param aspect The aspect the signal acknowledged or null if the ack was for a ping.
+     * @param ackMs The time (ms since the epoch) of the ack.
+     * @return A new snapshot with the ack recorded.
+     */
+    SignalState withAck(SignalAspect aspect, long ackMs) {
+        return new SignalState(mSignalId, mVersion + 1, mDesiredAspect,
+                aspect != null ? aspect : mAckedAspect, mConnected, ackMs);
+    }
+
+    /**
+     * @param connected Whether the signal is connected.
+     * @return A new snapshot with the connection status changed.
+     */
+    SignalState withConnected(boolean connected) {
+        return new SignalState(mSignalId, mVersion + 1, mDesiredAspect, mAckedAspect, connected,
+                mLastAckMs);
+    }
+
+    /** @return The ID of the signal. */
+    String getSignalId() {
+        return mSignalId;
+    }
+
+    /** @return Increases with every change to the signal's state. */
+    long getVersion() {
+        return mVersion;
+    }
+
+    /** @return The aspect most recently asked for or null if none has been. */
+    SignalAspect getDesiredAspect() {
+        return mDesiredAspect;
+    }
+
+    /** @return The aspect the signal most recently acknowledged or null if it hasn't acked one. */
+    SignalAspect getAckedAspect() {
+        return mAckedAspect;
+    }
+
+    /** @return Whether the signal is connected. */
+    boolean isConnected() {
+        return mConnected;
+    }
+
+    /** @return The time (ms since the epoch) of the last ack or 0 if there hasn't been one. */
+    long getLastAckMs() {
+        return mLastAckMs;
+    }
+
+    /** @return The UTF-8 encoded JSON for this snapshot. Shared, so this must not be modified. */
+    byte[] toJson() {
+        byte[] json = mJson;
+        if (json == null) {
+            json = ("{\"signal\":\"" + mSignalId + "\""
+                    + ",\"connected\":" + mConnected
+                    + ",\"desiredAspect\":" + aspectJson(mDesiredAspect)
+                    + ",\"ackedAspect\":" + aspectJson(mAckedAspect)
+                    + ",\"lastAckMs\":" + (mLastAckMs == 0 ? "null" : String.valueOf(mLastAckMs))
+                    + "}").getBytes(StandardCharsets.UTF_8);
+            mJson = json;
+        }
+        return json;
+    }
+
+    /**
+     * @param aspect An aspect or null.
+     * @return The aspect as a JSON value.
+     */
+    private static String aspectJson(SignalAspect aspect) {
+        if (aspect == null) return "null";
+        return "{\"color\":\"" + aspect.getColor() + "\",\"lamp\":\"" + aspect.getLampState()
+                + "\"}";
+    }
+}
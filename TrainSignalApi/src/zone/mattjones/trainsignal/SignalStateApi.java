@@ -0,0 +1,88 @@
+/**
+ * File: SignalStateApi.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Read-only API for a signal's state. Unlike the command API this never touches the signal;
+ *       it serves the latest in-memory snapshot for the signal. Each snapshot has an ETag so
+ *       anything polling can send If-None-Match and get an empty 304 until something changes.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+@WebServlet(name = "SignalStateApi", urlPatterns = "/state", loadOnStartup = 2)
+public class SignalStateApi extends HttpServlet {
+    private static final long serialVersionUID = 20261016L;
+
+    /**
+     * The start of every ETag. Snapshot versions start over when the server does, so this keeps
+     * an ETag from a previous run from matching.
+     */
+    private static final String ETAG_PREFIX =
+            "\"" + Long.toHexString(System.currentTimeMillis()) + "-";
+
+    /** The response for an unknown signal. */
+    private static final byte[] UNKNOWN_SIGNAL_RESPONSE =
+            "{\"error\":true}".getBytes(StandardCharsets.UTF_8);
+
+    public SignalStateApi() {}
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        SignalServer server = (SignalServer) getServletContext().getAttribute(
+                TrainSignalApi.SERVER_ATTRIBUTE);
+        if (server == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        String signalId = request.getParameter("signal");
+        if (signalId == null) {
+            signalId = TrainSignalMessage.DEFAULT_SIGNAL_ID;
+        }
+
+        response.setContentType("application/json");
+        SignalState state = server.getSignalState(signalId);
+        if (state == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.setContentLength(UNKNOWN_SIGNAL_RESPONSE.length);
+            response.getOutputStream().write(UNKNOWN_SIGNAL_RESPONSE);
+            return;
+        }
+
+        String etag = ETAG_PREFIX + state.getVersion() + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "no-cache");
+        if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = state.toJson();
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * @param ifNoneMatch The value of the If-None-Match header or null.
+     * @param etag The current ETag.
+     * @return Whether the header matches the current ETag.
+     */
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+}
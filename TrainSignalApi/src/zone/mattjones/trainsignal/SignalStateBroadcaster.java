@@ -0,0 +1,212 @@
+/**
+ * File: SignalStateBroadcaster.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Fans out changes to signal states (a signal acknowledging a new aspect or connecting or
+ *       disconnecting) to everything subscribed to them. Publishing only queues the state and
+ *       wakes the broadcaster's thread, so the threads talking to signals never wait on a
+ *       subscriber. Each event is encoded once and the same bytes are handed to every
+ *       subscriber; subscribers are expected to buffer a bounded number of events and give up
+ *       when they fall too far behind.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+class SignalStateBroadcaster implements Runnable {
+    /** How often to send subscribers something when nothing has changed in ms. */
+    static final long KEEPALIVE_INTERVAL_MS = 15000;
+
+    /** Sent to subscribers when nothing has changed in a while; a comment in SSE. */
+    static final byte[] KEEPALIVE_EVENT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Something that wants to be told about changes to signal states. */
+    interface Subscriber {
+        /** @return The ID of the signal to be told about or null for every signal. */
+        String getSignalId();
+
+        /**
+         * Hand an event to the subscriber. This must not block.
+         * @param event The encoded event. Shared, so this must not be modified.
+         * @return Whether the subscriber still wants events.
+         */
+        boolean offer(byte[] event);
+    }
+
+    /** Provides the current state of every signal for new subscribers. */
+    private final SignalServer mServer;
+
+    /** The thread fanning out events. */
+    private final Thread mThread;
+
+    /** States published but not fanned out yet. */
+    private final ConcurrentLinkedQueue<SignalState> mPendingStates;
+
+    /** Subscribers that haven't been sent the current states yet. */
+    private final ConcurrentLinkedQueue<Subscriber> mNewSubscribers;
+
+    /** Subscribers being sent every change. */
+    private final Set<Subscriber> mSubscribers;
+
+    /** The newest state sent for each signal. Only used by the broadcaster's thread. */
+    private final Map<String, SignalState> mLatestStates;
+
+    /** Whether the broadcaster has been stopped. */
+    private volatile boolean mStopped;
+
+    /** @param server Provides the current state of every signal for new subscribers. */
+    SignalStateBroadcaster(SignalServer server) {
+        mServer = server;
+        mPendingStates = new ConcurrentLinkedQueue<>();
+        mNewSubscribers = new ConcurrentLinkedQueue<>();
+        mSubscribers = ConcurrentHashMap.newKeySet();
+        mLatestStates = new HashMap<>();
+        mThread = new Thread(this, "SignalStateBroadcaster");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** @param state A new state to send to subscribers. */
+    void publish(SignalState state) {
+        mPendingStates.add(state);
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Start sending events to a subscriber. The first event it gets holds the current state of
+     * every signal it's interested in.
+     * @param subscriber The subscriber.
+     */
+    void subscribe(Subscriber subscriber) {
+        mNewSubscribers.add(subscriber);
+        LockSupport.unpark(mThread);
+    }
+
+    /** @param subscriber A subscriber to stop sending events to. */
+    void unsubscribe(Subscriber subscriber) {
+        mSubscribers.remove(subscriber);
+    }
+
+    /** @return The number of subscribers. */
+    int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    /** Stop the broadcaster's thread. Subscribers aren't sent anything else. */
+    void stop() {
+        mStopped = true;
+        LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void run() {
+        long nextKeepaliveMs = System.currentTimeMillis() + KEEPALIVE_INTERVAL_MS;
+        while (!mStopped) {
+            fanOutPending();
+
+            Subscriber subscriber;
+            while ((subscriber = mNewSubscribers.poll()) != null) {
+                addSubscriber(subscriber);
+            }
+
+            long nowMs = System.currentTimeMillis();
+            if (nowMs >= nextKeepaliveMs) {
+                for (Subscriber s : mSubscribers) {
+                    send(s, KEEPALIVE_EVENT);
+                }
+                nextKeepaliveMs = nowMs + KEEPALIVE_INTERVAL_MS;
+            }
+
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(nextKeepaliveMs - nowMs));
+        }
+    }
+
+    /**
+     * Send a new subscriber the current state of the signals it's interested in and start
+     * sending it changes.
+     * @param subscriber The new subscriber.
+     */
+    private void addSubscriber(Subscriber subscriber) {
+        // The current states can be newer than what's been fanned out so far. Send existing
+        // subscribers everything that's queued and anything newer in the current states before
+        // the new subscriber's snapshot, so the newest state sent is never one they haven't seen.
+        fanOutPending();
+        for (SignalState state : mServer.getSignalStates()) {
+            fanOut(state);
+        }
+
+        // Send everything as one event so a snapshot of many signals can't overflow the
+        // subscriber's buffer.
+        StringBuilder builder = new StringBuilder();
+        String signalId = subscriber.getSignalId();
+        for (SignalState state : mLatestStates.values()) {
+            if (signalId == null || signalId.equals(state.getSignalId())) {
+                builder.append(new String(encode(state), StandardCharsets.UTF_8));
+            }
+        }
+        if (builder.length() > 0
+                && !subscriber.offer(builder.toString().getBytes(StandardCharsets.UTF_8))) {
+            return;
+        }
+        mSubscribers.add(subscriber);
+    }
+
+    /** Send every state published so far to the subscribers interested in it. */
+    private void fanOutPending() {
+        SignalState state;
+        while ((state = mPendingStates.poll()) != null) {
+            fanOut(state);
+        }
+    }
+
+    /** @param state A state to send to the subscribers interested in it if it's new to them. */
+    private void fanOut(SignalState state) {
+        // States for the same signal can be published from different threads, so make sure no
+        // one is ever sent an older state after a newer one.
+        if (!updateLatest(state)) return;
+        byte[] event = encode(state);
+        for (Subscriber subscriber : mSubscribers) {
+            String signalId = subscriber.getSignalId();
+            if (signalId == null || signalId.equals(state.getSignalId())) {
+                send(subscriber, event);
+            }
+        }
+    }
+
+    /**
+     * @param state A state for a signal.
+     * @return Whether the state is newer than the latest one for the signal and replaced it.
+     */
+    private boolean updateLatest(SignalState state) {
+        SignalState latest = mLatestStates.get(state.getSignalId());
+        if (latest != null && latest.getVersion() >= state.getVersion()) return false;
+        mLatestStates.put(state.getSignalId(), state);
+        return true;
+    }
+
+    /**
+     * @param subscriber The subscriber to send an event to.
+     * @param event The encoded event.
+     */
+    private void send(Subscriber subscriber, byte[] event) {
+        if (!subscriber.offer(event)) mSubscribers.remove(subscriber);
+    }
+
+    /**
+     * @param state A signal state.
+     * @return The state as a server-sent event.
+     */
+    private static byte[] encode(SignalState state) {
+        return ("event: state\nid: " + state.getVersion() + "\ndata: "
+                + new String(state.toJson(), StandardCharsets.UTF_8) + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
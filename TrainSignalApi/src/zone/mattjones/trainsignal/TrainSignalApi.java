@@ -1,124 +1,416 @@
-/**
- * File: TrainSignalApi.java
- * Author: Matt Jones
- * Date: 6/1/2014
- * Desc: REST API for communicating with server program that controls the train signal.
- */
-
-package zone.mattjones.trainsignal;
-
-import java.io.IOException;
-
-import jakarta.servlet.ServletConfig;
-import jakarta.servlet.annotation.WebServlet;
-import jakarta.servlet.http.HttpServlet;
-import jakarta.servlet.http.HttpServletRequest;
-import jakarta.servlet.http.HttpServletResponse;
-
-import zone.mattjones.common.scheduler.ThreadScheduler;
-import zone.mattjones.trainsignal.TrainSignalMessage.LampState;
-import zone.mattjones.trainsignal.TrainSignalMessage.SignalColor;
-
-@WebServlet(name="TrainSignalApi", urlPatterns = "/api", loadOnStartup = 1)
-public class TrainSignalApi extends HttpServlet {
-    private static final long serialVersionUID = 20231112L;
-
-    /** The port for the connection to the train signal to run on. */
-    private static final int SERVER_PORT = 19100;
-    
-    /** The thread handling connections to the train signal. */
-    private TrainSignalConnectionHandler mConnectionHandler;
-
-    /** A scheduler for running tasks asynchronously. */
-    private ThreadScheduler mScheduler;
-
-    public TrainSignalApi() {}
-    
-    @Override
-    public void init(ServletConfig config) {
-        mScheduler = new ThreadScheduler();
-
-        // Set up the server socket listener for the arduino to connect to.
-        mConnectionHandler = new TrainSignalConnectionHandler(SERVER_PORT, mScheduler);
-    }
-
-    @Override
-    protected void doGet(HttpServletRequest request, HttpServletResponse response)
-            throws IOException {
-        // Read input from the params in the URL.
-        String colorString = request.getParameter("color");
-        SignalColor color = SignalColor.RED;
-        if (colorString != null) {
-            switch(colorString.charAt(0)) {
-                case 'R':
-                case 'r':
-                    color = SignalColor.RED;
-                    break;
-                case 'Y':
-                case 'y':
-                    color = SignalColor.YELLOW;
-                    break;
-                case 'G':
-                case 'g':
-                    color = SignalColor.GREEN;
-                    break;
-            }
-        }
-        
-        String lampString = request.getParameter("lamp");
-        LampState lamp = LampState.OFF;
-        if (lampString != null) {
-            switch(lampString.charAt(0)) {
-                case '1':
-                    lamp = LampState.ON;
-                    break;
-                case '0':
-                    lamp = LampState.OFF;
-                    break;
-                case 'B':
-                case 'b':
-                    lamp = LampState.BLINK;
-                    break;
-            }
-        }
-        
-        String serverActionString = request.getParameter("serverAction");
-        if (serverActionString != null) {
-            switch(serverActionString.charAt(0)) {
-            case 'X':
-            case 'x':
-                mConnectionHandler.killServer();
-                break;
-            case 'R':
-            case 'r':
-                mConnectionHandler.resetServer();
-                break;
-            }
-        }
-        
-        byte[] signalMessage = TrainSignalMessage.generateMessage(color, lamp);
-        boolean success = mConnectionHandler.addMessage(signalMessage);
-        
-        String messageString = new String(signalMessage);
-        response.getWriter().append(
-                "{\"error\":" + !success + ",\"currentState\":\"" + messageString + "\"}");
-        response.getWriter().flush();
-        response.getWriter().close();
-    }
-
-    @Override
-    public void destroy() {
-        if (mConnectionHandler != null) {
-            try {
-                mConnectionHandler.killServer();
-            } catch (IOException ex) {
-                System.err.println("[error]: Error shutting down signal connection handler! " +
-                        ex.getMessage());
-            }
-        }
-        if (mScheduler != null) {
-            mScheduler.shutdown();
-        }
-        super.destroy();
-    }
-}
+/**
+ * File: TrainSignalApi.java
+ * Author: Matt Jones
+ * Date: 6/1/2014
+ * Desc: REST API for communicating with server program that controls the train signal.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.annotation.WebInitParam;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import zone.mattjones.trainsignal.SignalServer.DeliveryResult;
+import zone.mattjones.trainsignal.TrainSignalMessage.LampState;
+import zone.mattjones.trainsignal.TrainSignalMessage.SignalColor;
+
+@WebServlet(name="TrainSignalApi", urlPatterns = "/api", loadOnStartup = 1, asyncSupported = true,
+        initParams = {
+                @WebInitParam(name = "ackWindow", value = "4"),
+                @WebInitParam(name = "maxSignals", value = "1024"),
+                @WebInitParam(name = "signalPort", value = "19100"),
+                @WebInitParam(name = "threadModel", value = "selector"),
+                @WebInitParam(name = "ackWaitTimeoutMs", value = "10000"),
+                @WebInitParam(name = "logLevel", value = "info")})
+public class TrainSignalApi extends HttpServlet {
+    private static final long serialVersionUID = 20231112L;
+
+    /** The default port for the connection to the train signal to run on. */
+    private static final int DEFAULT_SIGNAL_PORT = 19100;
+
+    /** The init param for the port signals connect to. */
+    private static final String SIGNAL_PORT_PARAM = "signalPort";
+    
+    /** The servlet context attribute other servlets can find the signal server under. */
+    static final String SERVER_ATTRIBUTE = SignalServer.class.getName();
+
+    /** The init param for the number of messages that can be waiting on an ack per signal. */
+    private static final String ACK_WINDOW_PARAM = "ackWindow";
+
+    /** The init param for the maximum number of signals the server will keep track of. */
+    private static final String MAX_SIGNALS_PARAM = "maxSignals";
+
+    /**
+     * The init param for how signal connections are serviced: "selector" for a single thread or
+     * "virtual" for blocking sockets with (virtual) threads per connection.
+     */
+    private static final String THREAD_MODEL_PARAM = "threadModel";
+
+    /**
+     * The init param for how long signals are assumed to take to change after acking a command
+     * in ms, until they report their real time in STATUS frames.
+     */
+    private static final String ACTUATION_PARAM = "actuationMs";
+
+    /**
+     * The init param for the least time between two signals starting to change in ms, so they
+     * don't all draw from the power supply at once. Signals aren't staggered by default.
+     */
+    private static final String ACTUATION_STAGGER_PARAM = "actuationStaggerMs";
+
+    /** The response header with the estimated time until the signal shows the command in ms. */
+    static final String TIME_TO_DISPLAY_HEADER = "X-Time-To-Display-Ms";
+
+    /** The init param for how long a request with wait=ack waits for the ack in ms. */
+    private static final String ACK_WAIT_TIMEOUT_PARAM = "ackWaitTimeoutMs";
+
+    /** The init param for the least important level of message to log. */
+    private static final String LOG_LEVEL_PARAM = "logLevel";
+
+    /**
+     * The init param for the directory to journal signal states in so they survive a restart,
+     * or "none" to not journal. Defaults to a directory under Tomcat's base directory.
+     */
+    private static final String JOURNAL_DIR_PARAM = "journalDir";
+
+    /**
+     * The init param for the address (host:port) other nodes in a cluster reach this one at.
+     * The cluster socket only listens on this address. Leave it out to run on its own.
+     */
+    private static final String CLUSTER_NODE_PARAM = "clusterNode";
+
+    /**
+     * The init param for the directory every node in the cluster records which signals are
+     * connected to it in, or "local" to only keep it in memory (a cluster of one).
+     */
+    private static final String CLUSTER_REGISTRY_PARAM = "clusterRegistry";
+
+    /** The default time a request with wait=ack waits for the ack in ms. */
+    private static final int DEFAULT_ACK_WAIT_TIMEOUT_MS = 10000;
+
+    /** The server handling connections to the train signals. */
+    private SignalServer mConnectionHandler;
+
+    /** Keeps signal states across restarts or null if journaling is off. */
+    private SignalJournal mJournal;
+
+    /** Shares signals with other nodes or null if this node runs on its own. */
+    private SignalCluster mCluster;
+
+    /** How long a request with wait=ack waits for the ack in ms. */
+    private int mAckWaitTimeoutMs;
+
+    public TrainSignalApi() {}
+    
+    @Override
+    public void init(ServletConfig config) {
+        String logLevel = config.getInitParameter(LOG_LEVEL_PARAM);
+        if (logLevel != null) {
+            try {
+                SignalLog.setLevel(SignalLog.Level.valueOf(logLevel.trim().toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                SignalLog.warning("Invalid value for " + LOG_LEVEL_PARAM + ": '" + logLevel
+                        + "'.");
+            }
+        }
+
+        // Set up the server socket listener for the arduinos to connect to.
+        int ackWindow = getIntParameter(config, ACK_WINDOW_PARAM,
+                SignalServer.DEFAULT_ACK_WINDOW);
+        int maxSignals = getIntParameter(config, MAX_SIGNALS_PARAM,
+                SignalServer.DEFAULT_MAX_SIGNALS);
+        int signalPort = getIntParameter(config, SIGNAL_PORT_PARAM, DEFAULT_SIGNAL_PORT);
+        if ("virtual".equals(config.getInitParameter(THREAD_MODEL_PARAM))) {
+            mConnectionHandler = new VirtualThreadSignalServer(signalPort, ackWindow, maxSignals);
+        } else {
+            mConnectionHandler = new TrainSignalConnectionHandler(signalPort, ackWindow,
+                    maxSignals);
+        }
+        mConnectionHandler.setActuationMs(getIntParameter(config, ACTUATION_PARAM,
+                (int) ActuationScheduler.DEFAULT_ACTUATION_MS));
+        mConnectionHandler.setActuationStaggerMs(
+                getIntParameter(config, ACTUATION_STAGGER_PARAM, 0));
+        mJournal = openJournal(config.getInitParameter(JOURNAL_DIR_PARAM));
+        if (mJournal != null) mConnectionHandler.restoreFrom(mJournal);
+        mCluster = joinCluster(mConnectionHandler, config.getInitParameter(CLUSTER_NODE_PARAM),
+                config.getInitParameter(CLUSTER_REGISTRY_PARAM));
+        config.getServletContext().setAttribute(SERVER_ATTRIBUTE, mConnectionHandler);
+        mAckWaitTimeoutMs = getIntParameter(config, ACK_WAIT_TIMEOUT_PARAM,
+                DEFAULT_ACK_WAIT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param directory The journal directory init param or null for the default.
+     * @return The opened journal or null if journaling is off or the journal can't be opened.
+     */
+    private static SignalJournal openJournal(String directory) {
+        if ("none".equals(directory)) return null;
+        Path path;
+        if (directory != null) {
+            path = Paths.get(directory);
+        } else {
+            String base = System.getProperty("catalina.base");
+            path = base != null ? Paths.get(base, "data", "TrainSignalApi")
+                    : Paths.get(System.getProperty("java.io.tmpdir"), "TrainSignalApi");
+        }
+        try {
+            return new SignalJournal(path);
+        } catch (IOException | RuntimeException ex) {
+            SignalLog.error("Failed to open signal state journal in " + path + ": "
+                    + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param server The server to share signals from.
+     * @param node The cluster node init param or null to run on its own.
+     * @param registry The cluster registry init param or null for "local".
+     * @return The cluster the server joined or null if it runs on its own.
+     */
+    private static SignalCluster joinCluster(SignalServer server, String node, String registry) {
+        if (node == null || node.trim().isEmpty()) return null;
+        try {
+            SignalRegistry signalRegistry = registry == null || "local".equals(registry)
+                    ? new LocalSignalRegistry() : new FileSignalRegistry(Paths.get(registry));
+            SignalCluster cluster = new SignalCluster(server, signalRegistry, node.trim());
+            server.joinCluster(cluster);
+            SignalLog.info("Joined cluster as " + cluster.getNode() + ".");
+            return cluster;
+        } catch (IOException | RuntimeException ex) {
+            SignalLog.error("Failed to join cluster as " + node + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read a positive integer init param.
+     * @param config The servlet's config.
+     * @param name The name of the param.
+     * @param defaultValue The value to use if the param is missing or invalid.
+     * @return The value of the param.
+     */
+    static int getIntParameter(ServletConfig config, String name, int defaultValue) {
+        return parseIntParameter(name, config.getInitParameter(name), defaultValue);
+    }
+
+    /**
+     * Parse a positive integer init param.
+     * @param name The name of the param.
+     * @param value The value of the param or null if it's missing.
+     * @param defaultValue The value to use if the param is missing or invalid.
+     * @return The value of the param.
+     */
+    static int parseIntParameter(String name, String value, int defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) return parsed;
+        } catch (NumberFormatException ex) {
+            // Fall through to the warning below.
+        }
+        SignalLog.warning("Invalid value for " + name + ": '" + value
+                + "'. Using " + defaultValue + ".");
+        return defaultValue;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long startNanos = System.nanoTime();
+
+        // Read input from the params in the URL.
+        String signalId = request.getParameter("signal");
+        if (signalId == null) {
+            signalId = TrainSignalMessage.DEFAULT_SIGNAL_ID;
+        }
+
+        SignalColor color = parseColor(request.getParameter("color"));
+        LampState lamp = parseLampState(request.getParameter("lamp"));
+
+        String serverActionString = request.getParameter("serverAction");
+        if (serverActionString != null) {
+            switch(serverActionString.charAt(0)) {
+            case 'X':
+            case 'x':
+                mConnectionHandler.killServer();
+                break;
+            case 'R':
+            case 'r':
+                mConnectionHandler.resetServer();
+                break;
+            }
+        }
+        
+        SignalAspect aspect = SignalAspect.of(color, lamp);
+        setTimeToDisplay(response, mConnectionHandler.estimateTimeToDisplayMs(signalId));
+        if ("ack".equals(request.getParameter("wait"))) {
+            waitForAck(request, response, signalId, aspect, startNanos);
+            return;
+        }
+
+        boolean success = mConnectionHandler.addMessage(signalId, aspect);
+        mConnectionHandler.getMetrics().getRequestToEnqueue().recordSince(startNanos);
+        writeResponse(response, aspect.getResponse(success));
+    }
+
+    /**
+     * Send a command and respond once the signal acks it (or it's superseded, dropped or times
+     * out). The request is put in async mode so no container thread is held while waiting.
+     * @param request The request.
+     * @param response The response.
+     * @param signalId The ID of the signal to change.
+     * @param aspect The aspect to change the signal to.
+     * @param startNanos The time (from System.nanoTime()) the request arrived.
+     */
+    private void waitForAck(HttpServletRequest request, HttpServletResponse response,
+            String signalId, SignalAspect aspect, long startNanos) throws IOException {
+        CompletableFuture<DeliveryResult> delivery =
+                mConnectionHandler.addTrackedMessage(signalId, aspect);
+        mConnectionHandler.getMetrics().getRequestToEnqueue().recordSince(startNanos);
+        if (delivery == null) {
+            writeResponse(response, aspect.getResponse(false));
+            return;
+        }
+
+        respondWhenDelivered(request, List.of(delivery), mAckWaitTimeoutMs,
+                (out) -> writeResponse(out, aspect.getDeliveryResponse(delivery.join())));
+    }
+
+    /** Writes a response once the deliveries it reports on are complete. */
+    interface DeliveryResponder {
+        /** @param response The response to write to. */
+        void respond(HttpServletResponse response) throws IOException;
+    }
+
+    /**
+     * Put the request in async mode and respond once every delivery has completed, giving up
+     * on any still pending after the timeout. No container thread is held while waiting.
+     * @param request The request.
+     * @param deliveries What happens to each command, null for ones that couldn't be queued.
+     * @param timeoutMs How long to wait for the deliveries in ms.
+     * @param responder Writes the response; every non-null delivery is complete by then.
+     */
+    static void respondWhenDelivered(HttpServletRequest request,
+            Collection<CompletableFuture<DeliveryResult>> deliveries, int timeoutMs,
+            DeliveryResponder responder) {
+        CompletableFuture<?>[] pending = deliveries.stream()
+                .filter((delivery) -> delivery != null)
+                .map((delivery) -> delivery.completeOnTimeout(DeliveryResult.TIMEOUT,
+                        timeoutMs, TimeUnit.MILLISECONDS))
+                .toArray(CompletableFuture<?>[]::new);
+
+        AsyncContext context = request.startAsync();
+        // The deliveries always complete first; this is only a backstop.
+        context.setTimeout(2L * timeoutMs);
+        CompletableFuture.allOf(pending).thenRun(() -> {
+            try {
+                // The last result is reported on a thread talking to a signal, so hand the
+                // response back to the container to write.
+                context.start(() -> {
+                    try {
+                        responder.respond((HttpServletResponse) context.getResponse());
+                    } catch (IOException ex) {
+                        SignalLog.error("Failed to write ack response: " + ex.getMessage());
+                    } finally {
+                        context.complete();
+                    }
+                });
+            } catch (IllegalStateException ex) {
+                // The request already timed out.
+            }
+        });
+    }
+
+    /**
+     * @param response The response to add the header to.
+     * @param etaMs The estimated time until the command shows in ms or -1 if it isn't known.
+     */
+    static void setTimeToDisplay(HttpServletResponse response, long etaMs) {
+        if (etaMs >= 0) response.setHeader(TIME_TO_DISPLAY_HEADER, Long.toString(etaMs));
+    }
+
+    /**
+     * @param response The response to write to.
+     * @param body The JSON body of the response.
+     */
+    static void writeResponse(HttpServletResponse response, byte[] body)
+            throws IOException {
+        response.setContentType("application/json");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * @param colorString The value of the color param.
+     * @return The color the param asks for, RED if it's missing or unknown.
+     */
+    static SignalColor parseColor(String colorString) {
+        if (colorString == null || colorString.isEmpty()) return SignalColor.RED;
+        switch(colorString.charAt(0)) {
+            case 'Y':
+            case 'y':
+                return SignalColor.YELLOW;
+            case 'G':
+            case 'g':
+                return SignalColor.GREEN;
+            case 'R':
+            case 'r':
+            default:
+                return SignalColor.RED;
+        }
+    }
+
+    /**
+     * @param lampString The value of the lamp param.
+     * @return The lamp state the param asks for, OFF if it's missing or unknown.
+     */
+    static LampState parseLampState(String lampString) {
+        if (lampString == null || lampString.isEmpty()) return LampState.OFF;
+        switch(lampString.charAt(0)) {
+            case '1':
+                return LampState.ON;
+            case 'B':
+            case 'b':
+                return LampState.BLINK;
+            case '0':
+            default:
+                return LampState.OFF;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (mConnectionHandler != null) {
+            SignalLog.info("Enqueue to write latency: "
+                    + mConnectionHandler.getEnqueueToWriteLatency());
+            try {
+                mConnectionHandler.killServer();
+            } catch (IOException ex) {
+                SignalLog.error("Error shutting down signal connection handler! " +
+                        ex.getMessage());
+            }
+        }
+        if (mCluster != null) {
+            mCluster.stop();
+        }
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        SignalLog.stop();
+        super.destroy();
+    }
+}
@@ -2,220 +2,396 @@
  * File: TrainSignalConnectionHandler.java
  * Author: Matt Jones
  * Date: 7.11.2018
- * Desc: The handler that waits for an incoming connection from the train signal so that it can
- *          begin sending commands to it. This class only handles a single connection. If a new
- *       connection is made, the existing client is disconnected.
+ * Desc: The handler that waits for incoming connections from train signals so that it can
+ *          begin sending commands to them. All connections are serviced by a single selector
+ *       thread (see VirtualThreadSignalServer for a thread per connection instead). Signals
+ *       identify themselves with a hello message after connecting; any that don't are treated
+ *       as the default signal. If a new connection is made for a signal that's already
+ *       connected, the existing client is disconnected.
  */
 
 package zone.mattjones.trainsignal;
 
-import zone.mattjones.common.scheduler.ThreadScheduler;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class TrainSignalConnectionHandler extends Thread {
-    /** The maximum number of messages that can be queued up for a connected signal. */
-    private static final int MAX_QUEUE_SIZE = 5;
+public class TrainSignalConnectionHandler extends SignalServer implements Runnable {
+    /** The longest killServer() waits for the selector thread to close everything in ms. */
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
 
-    /** The most we're willing to read as feedback from the signal. */
-    private static final int MAX_READ_SIZE_BYTES = 64;
+    /** The thread servicing the selector. */
+    private final Thread mThread;
 
-    /** The maximum amount of time to block on a read request from the signal in ms. */
-    private static final int READ_TIMEOUT_MS = 2000;
+    /**
+     * Sessions with newly added messages that need to be flushed by the selector thread. A
+     * session is only ever in here once at a time.
+     */
+    private final ConcurrentLinkedQueue<SignalSession> mReadySessions;
+
+    /** Whether the selector has already been woken up and hasn't drained mReadySessions yet. */
+    private final AtomicBoolean mWakeupPending;
 
-    /** The amount of time between ping pong messages to make sure the signal is still alive. */
-    private static final long PING_PONG_INTERVAL_MS = 10000;
+    /** Connections that haven't been bound to a session yet. Only used by the handler thread. */
+    private final Set<SignalConnection> mUnidentifiedConnections;
+
+    /**
+     * Hello and ack deadlines, nearest first, so each wakeup only looks at the ones that are
+     * due. An entry is stale once its connection's deadline has moved on and is skipped when it
+     * comes up. Only used by the handler thread.
+     */
+    private final PriorityQueue<Deadline> mDeadlines;
 
-    /** The port for the server to run on. */
-    private final int mPort;
+    /** The selector servicing the server socket and all signal connections. */
+    private volatile Selector mSelector;
 
-    /** A means of scheduling a recurring task for this thread. */
-    private final ThreadScheduler mScheduler;
-    
     /** The socket listening for incoming connections. */
-    private ServerSocket mServerSocket;
-
-    /** The ID of the scheduled task playing ping pong with the signal to make sure it's alive. */
-    private long mPingPongTaskId;
-    
-    /** The client (train signal arduino) currently connected to the server. */
-    private Socket mActiveClientSocket;
-    
-    /** Messages waiting to be sent to the train signal. */
-    // TODO(Matt): This probably doesn't need to be a list since messages are sent immediately. The
-    //             only reason to keep this would be for diagnostic messages.
-    private ConcurrentLinkedQueue<byte[]> mMessages;
-    
+    private ServerSocketChannel mServerChannel;
+
+    /** Whether all signal connections should be dropped. The server socket stays open. */
+    private volatile boolean mResetServer;
+
     /** Whether the server should stop on the next iteration. */
-    private boolean mStopServer;
-    
-    /** Default constructor. */
-    public TrainSignalConnectionHandler(int serverPort, ThreadScheduler scheduler) {
-        mPort = serverPort;
-        mScheduler = scheduler;
-        mMessages = new ConcurrentLinkedQueue<>();
-
-        mPingPongTaskId = mScheduler.scheduleTask(() -> {
-            if (mActiveClientSocket != null && !mActiveClientSocket.isClosed()) {
-                addMessage(TrainSignalMessage.ACK_MESSAGE);
-            }
-        }, PING_PONG_INTERVAL_MS, true);
+    private volatile boolean mStopServer;
+
+    /** @param serverPort The port for the server to run on. */
+    public TrainSignalConnectionHandler(int serverPort) {
+        this(serverPort, DEFAULT_ACK_WINDOW);
+    }
+
+    /**
+     * @param serverPort The port for the server to run on.
+     * @param ackWindow The number of messages that can be waiting on an ack from each signal at
+     *                  once. 1 means each message waits for the previous one to be acknowledged.
+     */
+    public TrainSignalConnectionHandler(int serverPort, int ackWindow) {
+        this(serverPort, ackWindow, DEFAULT_MAX_SIGNALS);
+    }
+
+    /**
+     * @param serverPort The port for the server to run on.
+     * @param ackWindow The number of messages that can be waiting on an ack from each signal at
+     *                  once. 1 means each message waits for the previous one to be acknowledged.
+     * @param maxSignals The maximum number of signals the handler will keep track of.
+     */
+    public TrainSignalConnectionHandler(int serverPort, int ackWindow, int maxSignals) {
+        super(serverPort, ackWindow, maxSignals);
+        mReadySessions = new ConcurrentLinkedQueue<>();
+        mWakeupPending = new AtomicBoolean();
+        mUnidentifiedConnections = new LinkedHashSet<>();
+        mDeadlines = new PriorityQueue<>(Comparator.comparingLong((d) -> d.mDeadlineMs));
 
-        start();
+        mThread = new Thread(this, "TrainSignalConnectionHandler");
+        mThread.start();
     }
-    
+
     @Override
     public void run() {
         while (!mStopServer) {
+            try {
+                if (mSelector == null) {
+                    mSelector = Selector.open();
+                }
+            } catch (IOException ex) {
+                SignalLog.error("Failed to open selector: " + ex.getMessage());
+                return;
+            }
+
+            if (mResetServer) {
+                mResetServer = false;
+                closeConnections();
+            }
+
             // If something happened to the server socket, reinitialize it.
-            if (mServerSocket == null || mServerSocket.isClosed()) {
+            if (mServerChannel == null || !mServerChannel.isOpen()) {
                 try {
-                    mServerSocket = new ServerSocket(mPort);
+                    mServerChannel = ServerSocketChannel.open();
+                    // Lets a restarted server bind while old connections sit in TIME_WAIT.
+                    mServerChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                    mServerChannel.bind(new InetSocketAddress(mPort));
+                    mServerChannel.configureBlocking(false);
+                    mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
                 } catch (IOException ex) {
-                    mServerSocket = null;
-
-                    System.err.println(
-                            "[error]: Failed to create server socket: " + ex.getMessage());
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
-                        System.err.println(
-                                "[info]: Sleep interrupted for server socket reconnect: " +
-                                        ex.getMessage());
-                    }
+                    closeServerChannel();
+                    SignalLog.error("Failed to create server socket: " + ex.getMessage());
+                    waitForSelector(BIND_RETRY_MS);
+                    continue;
                 }
             }
 
-            if (mServerSocket == null) {
-                continue;
+            long nextDeadlineMs = checkDeadlines(System.currentTimeMillis());
+            waitForSelector(nextDeadlineMs == 0
+                    ? 0 : Math.max(1, nextDeadlineMs - System.currentTimeMillis()));
+            mWakeupPending.set(false);
+
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                handleKey(key);
             }
 
-            try {
-                // Block until a connection is made. Currently, it's only possible to run with a
-                // single connected client.
-                mActiveClientSocket = mServerSocket.accept();
-                mActiveClientSocket.setSoTimeout(READ_TIMEOUT_MS);
-
-                while (mActiveClientSocket.isConnected() && !mActiveClientSocket.isClosed()) {
-                    sendMessages();
-
-                    // Sleep for one minute. A message being added to the queue will interrupt this.
-                    try {
-                        Thread.sleep(60000);
-                    } catch (InterruptedException e) {
-                        System.err.println("[info]: Messaging thread interrupted - a message was "
-                                + "likely enqueued.");
-                    }
-                }
+            SignalSession session;
+            while ((session = mReadySessions.poll()) != null) {
+                session.clearFlushPending();
+                SignalConnection connection = session.getConnection();
+                if (connection != null) flushConnection(connection);
+            }
+        }
 
-            } catch (IOException e) {
-                System.err.println("[error]: Messaging thread exception: " + e.getMessage());
-            } finally {
-                if (!mActiveClientSocket.isClosed()) {
-                    try {
-                        mActiveClientSocket.close();
-                    } catch (IOException ex) {
-                        System.err.println(
-                                "[error]: Failed to close signal socket: " + ex.getMessage());
-                    }
+        // Sockets deregistered from the selector are only really closed once it is, so close it
+        // whatever happens closing the connections.
+        try {
+            closeAll();
+        } finally {
+            if (mSelector != null) {
+                try {
+                    mSelector.close();
+                } catch (IOException ex) {
+                    SignalLog.error("Failed to close selector: " + ex.getMessage());
                 }
-                mActiveClientSocket = null;
             }
         }
     }
-    
+
     /**
-     * Send any messages in the queue to the client.
+     * Block on the selector until something happens or the timeout passes.
+     * @param timeoutMs The most time to wait in ms or 0 to wait indefinitely.
      */
-    private void sendMessages() throws IOException {
-        if (mMessages.isEmpty() || mActiveClientSocket == null
-                || !mActiveClientSocket.isConnected()) {
-            return;
+    private void waitForSelector(long timeoutMs) {
+        try {
+            mSelector.select(timeoutMs);
+        } catch (IOException ex) {
+            SignalLog.error("Selector failed: " + ex.getMessage());
         }
+    }
 
-        while (!mMessages.isEmpty()) {
-            byte[] curMessage = mMessages.poll();
+    /**
+     * Handle a key the selector reported as ready.
+     * @param key The ready key.
+     */
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) return;
 
-            mActiveClientSocket.getOutputStream().write(curMessage);
-            mActiveClientSocket.getOutputStream().flush();
+        if (key.isAcceptable()) {
+            acceptConnection();
+            return;
+        }
 
-            // Expect an acknowledgement before trying to send the next message.
-            byte[] buffer = new byte[16];
-            int size;
-            int totalBytesRead = 0;
-            String message = "";
-            InputStream in = mActiveClientSocket.getInputStream();
-            while ((size = in.read(buffer, 0, buffer.length)) >= 0) {
-                totalBytesRead += size;
-                if (totalBytesRead > MAX_READ_SIZE_BYTES) {
-                    // TODO(Matt): Consider disconnecting here.
-                    break;
+        SignalConnection connection = (SignalConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                if (!connection.read()) {
+                    throw new IOException("Signal closed the connection.");
                 }
-                message += new String(buffer, 0, size, Charset.defaultCharset());
-                if (TrainSignalMessage.isTerminatedMessage(message.getBytes(StandardCharsets.US_ASCII))) {
-                    break;
+                SignalFrameDecoder decoder = connection.getDecoder();
+                while (decoder.nextMessage()) {
+                    handleMessage(connection, decoder);
                 }
             }
-
-            if (!TrainSignalMessage.isAckMessage(message.getBytes(StandardCharsets.US_ASCII))) {
-                throw new IOException("Did not receive expected ack from signal!");
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
             }
+        } catch (IOException ex) {
+            SignalLog.error(signalIdOf(connection), "Messaging exception for " + connection + ": "
+                    + ex.getMessage());
+            closeConnection(connection);
+        }
+    }
+
+    /** Accept a pending connection on the server socket. */
+    private void acceptConnection() {
+        try {
+            SocketChannel channel = mServerChannel.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            SignalConnection.configureSocket(channel);
+
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            SignalConnection connection = new Connection(channel, key);
+            key.attach(connection);
+            connection.setDeadlineMs(System.currentTimeMillis() + HELLO_TIMEOUT_MS);
+            mUnidentifiedConnections.add(connection);
+        } catch (IOException ex) {
+            SignalLog.error("Failed to accept signal connection: " + ex.getMessage());
         }
     }
-    
+
+    @Override
+    void bindConnection(SignalConnection connection, String signalId) throws IOException {
+        mUnidentifiedConnections.remove(connection);
+        super.bindConnection(connection, signalId);
+    }
+
     /**
-     * Add a message to the queue. If a client is connected, the message is sent immediately.
-     * @param message The message to send to the client.
-     * @return Whether the operation was successful.
+     * Handle any connections that missed their hello or ack deadline.
+     * @param nowMs The current time in ms.
+     * @return The nearest deadline still pending or 0 if there isn't one.
      */
-    public boolean addMessage(byte[] message) {
-        // If no client is connected, only allow one message (the most recent) to be added to the
-        // queue. This will prevent a message flood (and memory leak) if the signal disconnects and
-        // messages continue to be added.
-        if (mActiveClientSocket == null || !mActiveClientSocket.isConnected() ||
-                mActiveClientSocket.isClosed()) {
-            mMessages.clear();
-            mMessages.add(message);
-            System.err.println("[warning]: Message added while signal disconnected. Only the most "
-                    + "recent message will be sent once connected.");
-            return true;
-        }
+    private long checkDeadlines(long nowMs) {
+        Deadline deadline;
+        while ((deadline = mDeadlines.peek()) != null) {
+            SignalConnection connection = deadline.mConnection;
+            if (connection.getDeadlineMs() != deadline.mDeadlineMs || !connection.isOpen()) {
+                mDeadlines.poll();
+                continue;
+            }
+            if (deadline.mDeadlineMs > nowMs) return deadline.mDeadlineMs;
+            mDeadlines.poll();
 
-        if (mMessages.size() >= MAX_QUEUE_SIZE) {
-            System.err.println("[error]: Signal message queue size exceeded! Ignoring message... ");
-            return false;
+            if (connection.getSession() == null) {
+                try {
+                    bindConnection(connection, TrainSignalMessage.DEFAULT_SIGNAL_ID);
+                } catch (IOException ex) {
+                    SignalLog.error("Failed to bind " + connection + ": "
+                            + ex.getMessage());
+                    closeConnection(connection);
+                }
+            } else {
+                SignalLog.error(signalIdOf(connection), "Did not receive expected ack from "
+                        + connection + "!");
+                getMetrics().recordAckTimeout();
+                closeConnection(connection);
+            }
         }
+        return 0;
+    }
+
+    @Override
+    void closeConnection(SignalConnection connection) {
+        super.closeConnection(connection);
+        mUnidentifiedConnections.remove(connection);
+    }
 
-        mMessages.add(message);
-        interrupt();
+    /** Close the server socket and every signal connection. */
+    private void closeAll() {
+        closeServerChannel();
+        closeConnections();
+    }
 
-        return true;
+    /** Close every signal connection, leaving the server socket listening. */
+    private void closeConnections() {
+        for (SignalConnection connection : new ArrayList<>(mUnidentifiedConnections)) {
+            closeConnectionQuietly(connection);
+        }
+        for (SignalSession session : mSessions.values()) {
+            SignalConnection connection = session.getConnection();
+            if (connection != null) closeConnectionQuietly(connection);
+        }
     }
-    
+
     /**
-     * Cause the server to close the connection and reopen it.
-     * @throws IOException
+     * Close a connection, logging rather than throwing if anything goes wrong so one failure
+     * can't leave the rest open.
+     * @param connection The connection to close.
      */
+    private void closeConnectionQuietly(SignalConnection connection) {
+        try {
+            closeConnection(connection);
+        } catch (RuntimeException ex) {
+            SignalLog.error(signalIdOf(connection), "Failed to close " + connection + ": " + ex);
+        }
+    }
+
+    /** Close the server socket, ignoring any errors. */
+    private void closeServerChannel() {
+        if (mServerChannel == null) return;
+        try {
+            mServerChannel.close();
+        } catch (IOException ex) {
+            SignalLog.error("Failed to close server socket: " + ex.getMessage());
+        }
+        mServerChannel = null;
+    }
+
+    @Override
+    void requestFlush(SignalSession session) {
+        // Hand the session to the selector thread. It only needs to be queued and the selector
+        // only needs to be woken once no matter how many messages are added before it runs.
+        if (session.markFlushPending()) {
+            mReadySessions.add(session);
+            wakeupSelector();
+        }
+    }
+
+    /** Wake the selector thread if it isn't already awake to handle pending work. */
+    private void wakeupSelector() {
+        Selector selector = mSelector;
+        if (selector != null && mWakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
     public void resetServer() throws IOException {
-        if (mServerSocket != null) mServerSocket.close();
-        if (mActiveClientSocket != null) mActiveClientSocket.close();
+        mResetServer = true;
+        Selector selector = mSelector;
+        if (selector != null) selector.wakeup();
     }
-    
-    /**
-     * Stops the server socket and exits the thread.
-     * @throws IOException
-     */
+
+    @Override
     public void killServer() throws IOException {
+        super.killServer();
         mStopServer = true;
-        if (mScheduler != null) {
-            mScheduler.cancelTask(mPingPongTaskId);
-        }
         resetServer();
+        // Wait for the selector thread to close every connection, so whatever is shut down next
+        // (e.g. the cluster) isn't pulled out from under it.
+        if (Thread.currentThread() == mThread) return;
+        try {
+            mThread.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (mThread.isAlive()) SignalLog.warning("Signal connection handler didn't stop in time.");
+    }
+
+    /** A hello or ack deadline for a connection. */
+    private static final class Deadline {
+        /** The connection that has to hear from its signal. */
+        final SignalConnection mConnection;
+
+        /** The time (ms) the connection's deadline was set to. */
+        final long mDeadlineMs;
+
+        /**
+         * @param connection The connection that has to hear from its signal.
+         * @param deadlineMs The time (ms) the connection's deadline was set to.
+         */
+        Deadline(SignalConnection connection, long deadlineMs) {
+            mConnection = connection;
+            mDeadlineMs = deadlineMs;
+        }
+    }
+
+    /** A non-blocking connection whose deadlines are tracked in mDeadlines. */
+    private final class Connection extends SignalConnection {
+        /**
+         * @param channel The non-blocking socket connected to the signal.
+         * @param key The key registering the socket with the selector.
+         */
+        Connection(SocketChannel channel, SelectionKey key) {
+            super(channel, key, mAckWindow);
+        }
+
+        @Override
+        void setDeadlineMs(long deadlineMs) {
+            if (deadlineMs != 0 && deadlineMs != getDeadlineMs()) {
+                mDeadlines.add(new Deadline(this, deadlineMs));
+            }
+            super.setDeadlineMs(deadlineMs);
+        }
     }
 }
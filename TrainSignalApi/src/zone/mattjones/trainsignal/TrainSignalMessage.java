@@ -18,12 +18,39 @@
  *           - [6] turn lamp off
  *           - [7] unused
  *       - '!' to close the message
+ *
+ *       Signals may optionally identify themselves right after connecting by sending a hello
+ *       message. Signals that don't are treated as the default signal:
+ *       - '[' to open the hello
+ *       - The signal ID (1-24 chars of [A-Za-z0-9_.-])
+ *       - ']' to close the ID
+ *       - '!' to close the message
+ *
+ *       Version 1 frames:
+ *       Signals that need more than the above (sequence numbers, status, telemetry, or several
+ *       signals on one connection) can use length-prefixed frames instead. The first byte of a
+ *       frame has bit [7] set, which never happens in a legacy message, so both kinds can share
+ *       a connection. Once a signal sends a version 1 frame, the server answers in version 1.
+ *       - One byte marker: 0x80 | version
+ *       - One byte length of everything after this byte (4 + ID length + payload length)
+ *       - One byte message type (see MessageType)
+ *       - Two byte big endian sequence number
+ *       - One byte signal ID length (0-24) followed by the signal ID
+ *       - Payload: the state byte for COMMAND and STATUS, arbitrary bytes for TELEMETRY,
+ *         nothing for the others
+ *       Every COMMAND and PING is answered with an ACK carrying the same sequence number.
+ *       ACKs sent to API clients and other cluster nodes carry a result byte: the ordinal of
+ *       the command's SignalServer.DeliveryResult, ACK_RESULT_QUEUED if the sender didn't wait
+ *       for the signal or ACK_RESULT_REJECTED if the command couldn't be queued.
  * Reserved Chars:
  *      '[', ']', '|', '\0'
  */
 
 package zone.mattjones.trainsignal;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public class TrainSignalMessage {
     /** Possible colors that the signal can be. */
     public enum SignalColor {
@@ -38,6 +65,37 @@ public class TrainSignalMessage {
         BLINK,
         OFF
     }
+
+    /** The types of version 1 frames. */
+    public enum MessageType {
+        COMMAND(1),
+        ACK(2),
+        PING(3),
+        STATUS(4),
+        TELEMETRY(5),
+        HELLO(6);
+
+        /** Lookup table from a type's code to the type. */
+        private static final MessageType[] BY_CODE = new MessageType[7];
+        static {
+            for (MessageType type : values()) BY_CODE[type.code] = type;
+        }
+
+        /** The value of the type byte on the wire. */
+        public final byte code;
+
+        MessageType(int code) {
+            this.code = (byte) code;
+        }
+
+        /**
+         * @param code The value of a type byte.
+         * @return The matching type or null if the code is unknown.
+         */
+        public static MessageType fromCode(int code) {
+            return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        }
+    }
     
     // Different states for a signal to be in
     private static final byte SIGNAL_BASE     = 1;  // 00000001
@@ -49,11 +107,39 @@ public class TrainSignalMessage {
     private static final byte SIGNAL_LAMP_OFF = 64; // 01000000
 
     /** The character all messages should end with. */
-    private static final char MESSAGE_TERMINATING_CHAR = '!';
+    public static final char MESSAGE_TERMINATING_CHAR = '!';
+
+    /** The characters wrapping the signal ID in a hello message. */
+    private static final char HELLO_START_CHAR = '[';
+    private static final char HELLO_END_CHAR = ']';
+
+    /** The longest signal ID that can be used. */
+    public static final int MAX_SIGNAL_ID_LENGTH = 24;
+
+    /** The ID used for signals that connect without identifying themselves. */
+    public static final String DEFAULT_SIGNAL_ID = "default";
 
     /** The acknowledgement message expected for each message sent to the signal. */
     public static final byte[] ACK_MESSAGE = {SIGNAL_BASE, MESSAGE_TERMINATING_CHAR};
 
+    /** The version of the length-prefixed frame format. */
+    public static final int PROTOCOL_VERSION = 1;
+
+    /** The bit set in the first byte of every version 1 frame. */
+    public static final int FRAME_MARKER = 0x80;
+
+    /** The size of the fixed part of a version 1 frame, before the signal ID. */
+    public static final int FRAME_HEADER_SIZE = 6;
+
+    /** The largest a version 1 frame can be. */
+    public static final int MAX_FRAME_SIZE = 2 + 0xFF;
+
+    /** The ACK result byte for a command that was queued without waiting for the signal. */
+    public static final byte ACK_RESULT_QUEUED = (byte) 0xFE;
+
+    /** The ACK result byte for a command that couldn't be queued. */
+    public static final byte ACK_RESULT_REJECTED = (byte) 0xFF;
+
     /** Private constructor to prevent instantiation. */
     private TrainSignalMessage() {}
     
@@ -107,6 +193,18 @@ public class TrainSignalMessage {
                 ACK_MESSAGE[0] == message[0] && ACK_MESSAGE[1] == message[1];
     }
 
+    /**
+     * Check whether a message is an ack without copying it out of the buffer it was read into.
+     * @param buffer The buffer holding the message.
+     * @param offset The index of the message in the buffer.
+     * @param length The length of the message.
+     * @return Whether the message is an acknowledgment of a sent message.
+     */
+    public static boolean isAckMessage(ByteBuffer buffer, int offset, int length) {
+        return buffer != null && length == ACK_MESSAGE.length &&
+                ACK_MESSAGE[0] == buffer.get(offset) && ACK_MESSAGE[1] == buffer.get(offset + 1);
+    }
+
     /**
      * @param message The message to check.
      * @return Whether the message is a properly terminated message (contains the end character).
@@ -114,4 +212,97 @@ public class TrainSignalMessage {
     public static boolean isTerminatedMessage(byte[] message) {
         return message != null && message.length > 0 && message[message.length - 1] == MESSAGE_TERMINATING_CHAR;
     }
+
+    /**
+     * @param signalId The ID to check.
+     * @return Whether the ID can be used to identify a signal.
+     */
+    public static boolean isValidSignalId(String signalId) {
+        if (signalId == null || signalId.isEmpty() || signalId.length() > MAX_SIGNAL_ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < signalId.length(); i++) {
+            char c = signalId.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '_' || c == '.' || c == '-';
+            if (!valid) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse the signal ID out of a hello message.
+     * @param message The message received from the signal.
+     * @return The signal ID or null if the message isn't a valid hello.
+     */
+    public static String parseHelloMessage(byte[] message) {
+        return message == null ? null
+                : parseHelloMessage(ByteBuffer.wrap(message), 0, message.length);
+    }
+
+    /**
+     * Parse the signal ID out of a hello message in the buffer it was read into.
+     * @param buffer The buffer holding the message.
+     * @param offset The index of the message in the buffer.
+     * @param length The length of the message.
+     * @return The signal ID or null if the message isn't a valid hello.
+     */
+    public static String parseHelloMessage(ByteBuffer buffer, int offset, int length) {
+        if (buffer == null || length < 4 || buffer.get(offset) != HELLO_START_CHAR
+                || buffer.get(offset + length - 2) != HELLO_END_CHAR
+                || buffer.get(offset + length - 1) != MESSAGE_TERMINATING_CHAR) {
+            return null;
+        }
+        byte[] idBytes = new byte[length - 3];
+        for (int i = 0; i < idBytes.length; i++) {
+            idBytes[i] = buffer.get(offset + 1 + i);
+        }
+        String signalId = new String(idBytes, StandardCharsets.US_ASCII);
+        return isValidSignalId(signalId) ? signalId : null;
+    }
+
+    /**
+     * Write a version 1 frame.
+     * @param out The buffer to write the frame to.
+     * @param type The type of the message.
+     * @param sequence The sequence number of the message. Only the low 16 bits are sent.
+     * @param signalId The ASCII bytes of the signal ID or null to leave it out.
+     * @param payload The array holding the payload or null if there is none.
+     * @param payloadOffset The index of the payload in its array.
+     * @param payloadLength The length of the payload.
+     */
+    public static void writeFrame(ByteBuffer out, MessageType type, int sequence,
+            byte[] signalId, byte[] payload, int payloadOffset, int payloadLength) {
+        int idLength = signalId == null ? 0 : signalId.length;
+        int length = FRAME_HEADER_SIZE - 2 + idLength + payloadLength;
+        if (idLength > MAX_SIGNAL_ID_LENGTH || length > 0xFF) {
+            throw new IllegalArgumentException("Frame too large!");
+        }
+
+        out.put((byte) (FRAME_MARKER | PROTOCOL_VERSION));
+        out.put((byte) length);
+        out.put(type.code);
+        out.putShort((short) sequence);
+        out.put((byte) idLength);
+        if (idLength > 0) out.put(signalId);
+        if (payloadLength > 0) out.put(payload, payloadOffset, payloadLength);
+    }
+
+    /**
+     * Generate a version 1 frame.
+     * @param type The type of the message.
+     * @param sequence The sequence number of the message. Only the low 16 bits are sent.
+     * @param signalId The signal ID or null to leave it out.
+     * @param payload The payload or null if there is none.
+     * @return The frame.
+     */
+    public static byte[] generateFrame(MessageType type, int sequence, String signalId,
+            byte[] payload) {
+        byte[] idBytes = signalId == null ? null : signalId.getBytes(StandardCharsets.US_ASCII);
+        int payloadLength = payload == null ? 0 : payload.length;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE
+                + (idBytes == null ? 0 : idBytes.length) + payloadLength);
+        writeFrame(frame, type, sequence, idBytes, payload, 0, payloadLength);
+        return frame.array();
+    }
 }
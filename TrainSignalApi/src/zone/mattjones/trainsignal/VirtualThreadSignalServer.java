@@ -0,0 +1,288 @@
+/**
+ * File: VirtualThreadSignalServer.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: A server for train signals that gives every connection its own threads and uses plain
+ *       blocking sockets: one thread reads and handles messages from the signal and the other
+ *       writes queued messages and enforces the hello and ack deadlines. Heartbeats come from
+ *       the wheel shared with the other server.
+ *
+ *       On JDK 21+ these are all virtual threads, so a blocked read or a sleeping timer costs a
+ *       small heap object rather than a platform thread and its stack, and tens of thousands of
+ *       signals can be connected without sizing any pools. On older JDKs platform threads are
+ *       used, which is only reasonable for a handful of signals.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class VirtualThreadSignalServer extends SignalServer {
+    /** Creates every thread the server uses. */
+    private final ThreadFactory mThreadFactory;
+
+    /** Every open connection, identified or not. */
+    private final Set<Connection> mConnections;
+
+    /** The socket listening for incoming connections. */
+    private volatile ServerSocketChannel mServerChannel;
+
+    /** Whether the server has been stopped. */
+    private volatile boolean mStopServer;
+
+    /** @param serverPort The port for the server to run on. */
+    public VirtualThreadSignalServer(int serverPort) {
+        this(serverPort, DEFAULT_ACK_WINDOW, DEFAULT_MAX_SIGNALS);
+    }
+
+    /**
+     * @param serverPort The port for the server to run on.
+     * @param ackWindow The number of messages that can be waiting on an ack from each signal at
+     *                  once. 1 means each message waits for the previous one to be acknowledged.
+     * @param maxSignals The maximum number of signals the server will keep track of.
+     */
+    public VirtualThreadSignalServer(int serverPort, int ackWindow, int maxSignals) {
+        super(serverPort, ackWindow, maxSignals);
+        if (!VirtualThreads.isAvailable()) {
+            SignalLog.warning("Virtual threads aren't available, using platform "
+                    + "threads for every signal connection.");
+        }
+        mThreadFactory = VirtualThreads.newFactory("signal-");
+        mConnections = ConcurrentHashMap.newKeySet();
+
+        mThreadFactory.newThread(this::acceptConnections).start();
+    }
+
+    /** Accept connections until the server is stopped, reopening the server socket as needed. */
+    private void acceptConnections() {
+        while (!mStopServer) {
+            ServerSocketChannel serverChannel = null;
+            try {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                serverChannel.bind(new InetSocketAddress(mPort));
+            } catch (IOException ex) {
+                closeQuietly(serverChannel);
+                SignalLog.error("Failed to create server socket: " + ex.getMessage());
+                sleep(BIND_RETRY_MS);
+                continue;
+            }
+
+            // Closing the server socket is how a kill interrupts accept(). A reset only drops
+            // the signal connections so signals can reconnect straight away.
+            mServerChannel = serverChannel;
+            if (mStopServer) {
+                closeQuietly(serverChannel);
+                break;
+            }
+
+            try {
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    try {
+                        SignalConnection.configureSocket(channel);
+                    } catch (IOException ex) {
+                        SignalLog.error("Failed to set up signal connection: "
+                                + ex.getMessage());
+                        closeQuietly(channel);
+                        continue;
+                    }
+                    Connection connection = new Connection(channel);
+                    mConnections.add(connection);
+                    connection.start();
+                }
+            } catch (IOException ex) {
+                if (serverChannel.isOpen()) {
+                    SignalLog.error("Failed to accept signal connection: "
+                            + ex.getMessage());
+                }
+            } finally {
+                closeQuietly(serverChannel);
+            }
+        }
+    }
+
+    @Override
+    void requestFlush(SignalSession session) {
+        // Unparking is idempotent, so any number of messages added before the writer runs only
+        // wake it once.
+        SignalConnection connection = session.getConnection();
+        if (connection instanceof Connection) {
+            LockSupport.unpark(((Connection) connection).mWriter);
+        }
+    }
+
+    @Override
+    void closeConnection(SignalConnection connection) {
+        // Readers and writers hold the lock for every use of the connection, including a
+        // blocking write, so close the socket first to get them to let go of it. The in-flight
+        // messages and the session are then only dealt with while holding the lock, whichever
+        // thread asked for the close.
+        Connection owned = (Connection) connection;
+        owned.mClosed = true;
+        owned.closeSocket();
+        owned.mLock.lock();
+        try {
+            super.closeConnection(connection);
+        } finally {
+            owned.mLock.unlock();
+        }
+    }
+
+    @Override
+    public void resetServer() throws IOException {
+        for (Connection connection : mConnections) {
+            closeConnection(connection);
+        }
+    }
+
+    @Override
+    public void killServer() throws IOException {
+        super.killServer();
+        mStopServer = true;
+        closeQuietly(mServerChannel);
+        resetServer();
+    }
+
+    /** @param ms How long to sleep in ms. */
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @param channel A socket to close, ignoring any errors. May be null. */
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            SignalLog.error("Failed to close server socket: " + ex.getMessage());
+        }
+    }
+
+    /** A blocking connection with a thread reading from it and a thread writing to it. */
+    private final class Connection extends SignalConnection {
+        /** Held while handling messages from or writing messages to the signal. */
+        private final ReentrantLock mLock;
+
+        /** The thread reading messages from the signal. */
+        private final Thread mReader;
+
+        /** The thread writing queued messages and enforcing deadlines. */
+        private final Thread mWriter;
+
+        /** Whether the connection has been closed. */
+        private volatile boolean mClosed;
+
+        /** @param channel The blocking socket connected to the signal. */
+        Connection(SocketChannel channel) {
+            super(channel, null, mAckWindow);
+            mLock = new ReentrantLock();
+            mReader = mThreadFactory.newThread(this::readMessages);
+            mWriter = mThreadFactory.newThread(this::writeMessages);
+            setDeadlineMs(System.currentTimeMillis() + HELLO_TIMEOUT_MS);
+        }
+
+        /** Start servicing the connection. */
+        void start() {
+            mReader.start();
+            mWriter.start();
+        }
+
+        /** Read and handle messages from the signal until the connection is closed. */
+        private void readMessages() {
+            try {
+                while (read()) {
+                    mLock.lock();
+                    try {
+                        SignalFrameDecoder decoder = getDecoder();
+                        while (decoder.nextMessage()) {
+                            handleMessage(this, decoder);
+                        }
+                    } finally {
+                        mLock.unlock();
+                    }
+                    // The message may have changed the deadline the writer is waiting on.
+                    LockSupport.unpark(mWriter);
+                }
+                throw new IOException("Signal closed the connection.");
+            } catch (IOException ex) {
+                if (!mClosed) {
+                    SignalLog.error(signalIdOf(this), "Messaging exception for " + this
+                            + ": " + ex.getMessage());
+                }
+            } finally {
+                closeConnection(this);
+            }
+        }
+
+        /** Write queued messages and enforce deadlines until the connection is closed. */
+        private void writeMessages() {
+            while (!mClosed) {
+                long deadlineMs;
+                mLock.lock();
+                try {
+                    if (mClosed) return;
+                    if (!checkDeadline(System.currentTimeMillis())) return;
+                    flushConnection(this);
+                    deadlineMs = getDeadlineMs();
+                } finally {
+                    mLock.unlock();
+                }
+
+                if (deadlineMs == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long waitMs = Math.max(1, deadlineMs - System.currentTimeMillis());
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMs));
+                }
+            }
+        }
+
+        /**
+         * Handle the signal missing its hello or ack deadline. Must hold the lock.
+         * @param nowMs The current time in ms.
+         * @return Whether the connection is still open.
+         */
+        private boolean checkDeadline(long nowMs) {
+            if (getDeadlineMs() == 0 || getDeadlineMs() > nowMs) return true;
+
+            if (getSession() == null) {
+                try {
+                    bindConnection(this, TrainSignalMessage.DEFAULT_SIGNAL_ID);
+                    return true;
+                } catch (IOException ex) {
+                    SignalLog.error("Failed to bind " + this + ": " + ex.getMessage());
+                }
+            } else {
+                SignalLog.error(signalIdOf(this), "Did not receive expected ack from " + this
+                        + "!");
+                getMetrics().recordAckTimeout();
+            }
+            closeConnection(this);
+            return false;
+        }
+
+        @Override
+        void close() {
+            mClosed = true;
+            mConnections.remove(this);
+            super.close();
+            LockSupport.unpark(mWriter);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * File: VirtualThreads.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Access to virtual threads (JDK 21+) without requiring them at compile time. On older
+ *       JDKs everything falls back to platform daemon threads.
+ */
+
+package zone.mattjones.trainsignal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class VirtualThreads {
+    /** Thread.ofVirtual() or null if the JDK doesn't have virtual threads. */
+    private static final Method OF_VIRTUAL;
+
+    /** Thread.Builder.name(String, long) and Thread.Builder.factory(). */
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+        } catch (ReflectiveOperationException ex) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    /** Private constructor to prevent instantiation. */
+    private VirtualThreads() {}
+
+    /** @return Whether the JDK supports virtual threads. */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param namePrefix The prefix for thread names; each thread gets a counter appended.
+     * @return A factory creating virtual threads, or platform daemon threads if virtual threads
+     *         aren't available.
+     */
+    public static ThreadFactory newFactory(String namePrefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = BUILDER_NAME.invoke(builder, namePrefix, 0L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException ex) {
+                SignalLog.warning("Failed to create virtual thread factory: "
+                        + ex.getMessage());
+            }
+        }
+
+        AtomicLong counter = new AtomicLong();
+        return (runnable) -> {
+            Thread thread = new Thread(runnable, namePrefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,400 @@
+/**
+ * File: SignalSimulator.java
+ * Author: Matt Jones
+ * Date: 2026.10.16
+ * Desc: Simulates any number of signals running SearchlightSignal.ino so the server can be load
+ *       tested without hardware. Each simulated signal connects to the server, identifies
+ *       itself, acks every message and then waits the way the sketch does: 2 seconds after each
+ *       message for the signal to change and 500 ms between polls when idle. Signals run on
+ *       virtual threads when the JDK has them (21+).
+ *
+ *       Network trouble can be injected: extra latency before each ack, lost acks (the server
+ *       will time out and drop the connection) and abrupt disconnects. Optionally, commands can
+ *       also be sent through the HTTP API at a fixed rate to load test the whole path.
+ *
+ *       Run with: ant simulate -Dsim.args="--signals 1000 --loss 0.01"
+ *       See usage() for all options.
+ */
+
+package zone.mattjones.trainsignal.sim;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zone.mattjones.trainsignal.LatencyHistogram;
+import zone.mattjones.trainsignal.SignalAspect;
+import zone.mattjones.trainsignal.TrainSignalMessage;
+import zone.mattjones.trainsignal.TrainSignalMessage.MessageType;
+import zone.mattjones.trainsignal.VirtualThreads;
+
+public class SignalSimulator {
+    /** Options and their default values. */
+    private static final String[][] OPTIONS = {
+        {"host", "localhost", "The host the server is running on."},
+        {"port", "19100", "The port signals connect to."},
+        {"signals", "1", "The number of signals to simulate."},
+        {"prefix", "sim-", "Signal IDs are this prefix followed by a number."},
+        {"no-hello", "false", "Don't identify; every signal is the server's default signal."},
+        {"v1", "false", "Speak version 1 frames instead of legacy messages."},
+        {"settle-ms", "2000", "How long a signal waits after each message."},
+        {"relay-ms", "500", "How long a color change takes before the ack is sent."},
+        {"idle-ms", "500", "How long a signal waits between polls when idle."},
+        {"latency-ms", "0", "Extra delay added before each ack is sent."},
+        {"loss", "0", "Probability (0-1) that an ack is never sent."},
+        {"disconnect", "0", "Probability (0-1) of dropping the connection on a message."},
+        {"reconnect-ms", "10000", "How long to wait after a failed connection attempt."},
+        {"ramp-ms", "0", "Delay between starting each signal."},
+        {"duration-s", "0", "How long to run for; 0 runs forever."},
+        {"report-s", "5", "How often to print stats."},
+        {"http", "", "API URL to send commands to, e.g. http://localhost:8080/TrainSignalApi/api"},
+        {"rate", "10", "Commands per second to send through the API."},
+    };
+
+    /** Parsed options. */
+    private final Map<String, String> mOptions;
+
+    /** Creates a thread for every simulated signal and API request. */
+    private final ThreadFactory mThreadFactory;
+
+    /** Stats across all simulated signals. */
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mConnectFailures = new AtomicLong();
+    private final AtomicLong mConnected = new AtomicLong();
+    private final AtomicLong mCommands = new AtomicLong();
+    private final AtomicLong mPings = new AtomicLong();
+    private final AtomicLong mDroppedAcks = new AtomicLong();
+    private final AtomicLong mInjectedDisconnects = new AtomicLong();
+    private final AtomicLong mServerDisconnects = new AtomicLong();
+    private final AtomicLong mApiRequests = new AtomicLong();
+    private final AtomicLong mApiErrors = new AtomicLong();
+    private final LatencyHistogram mApiLatency = new LatencyHistogram();
+
+    /** Whether the simulation should stop. */
+    private volatile boolean mStopped;
+
+    /** @param options Parsed options. */
+    private SignalSimulator(Map<String, String> options) {
+        mOptions = options;
+        mThreadFactory = VirtualThreads.newFactory("sim-");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        if (options == null) {
+            usage();
+            System.exit(1);
+        }
+        new SignalSimulator(options).run();
+    }
+
+    /** Start every simulated signal and report until the simulation ends. */
+    private void run() throws InterruptedException {
+        int signals = intOption("signals");
+        System.out.println("[info]: Simulating " + signals + " signal(s) on "
+                + (VirtualThreads.isAvailable() ? "virtual" : "platform") + " threads.");
+
+        long startMs = System.currentTimeMillis();
+        long durationMs = intOption("duration-s") * 1000L;
+        long reportMs = Math.max(1, intOption("report-s")) * 1000L;
+
+        for (int i = 0; i < signals; i++) {
+            String signalId = boolOption("no-hello") ? null : mOptions.get("prefix") + i;
+            mThreadFactory.newThread(() -> runSignal(signalId)).start();
+            if (intOption("ramp-ms") > 0) Thread.sleep(intOption("ramp-ms"));
+        }
+
+        if (!mOptions.get("http").isEmpty()) {
+            mThreadFactory.newThread(this::runApiLoad).start();
+        }
+
+        while (durationMs == 0 || System.currentTimeMillis() - startMs < durationMs) {
+            Thread.sleep(reportMs);
+            report();
+        }
+        mStopped = true;
+        report();
+        System.exit(0);
+    }
+
+    /** Print the current stats. */
+    private void report() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[stats]: connected=").append(mConnected.get())
+                .append(" connects=").append(mConnects.get())
+                .append(" connectFailures=").append(mConnectFailures.get())
+                .append(" commands=").append(mCommands.get())
+                .append(" pings=").append(mPings.get())
+                .append(" droppedAcks=").append(mDroppedAcks.get())
+                .append(" injectedDisconnects=").append(mInjectedDisconnects.get())
+                .append(" serverDisconnects=").append(mServerDisconnects.get());
+        if (!mOptions.get("http").isEmpty()) {
+            builder.append("\n[stats]: api requests=").append(mApiRequests.get())
+                    .append(" errors=").append(mApiErrors.get())
+                    .append(" latency ").append(mApiLatency);
+        }
+        System.out.println(builder);
+    }
+
+    /**
+     * Run a single signal, reconnecting whenever the connection is lost like the sketch does.
+     * @param signalId The ID to identify as or null to not send a hello.
+     */
+    private void runSignal(String signalId) {
+        InetSocketAddress address = new InetSocketAddress(mOptions.get("host"), intOption("port"));
+        while (!mStopped) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 5000);
+                socket.setTcpNoDelay(true);
+                mConnects.incrementAndGet();
+                mConnected.incrementAndGet();
+                try {
+                    runConnection(socket, signalId);
+                } finally {
+                    mConnected.decrementAndGet();
+                }
+                // The sketch only notices the lost connection on its next trip around the loop.
+                sleep(intOption("idle-ms"));
+            } catch (IOException ex) {
+                mConnectFailures.incrementAndGet();
+                sleep(intOption("reconnect-ms"));
+            }
+        }
+    }
+
+    /**
+     * Talk to the server over a connected socket until the connection is lost.
+     * @param socket The connected socket.
+     * @param signalId The ID to identify as or null to not send a hello.
+     */
+    private void runConnection(Socket socket, String signalId) throws IOException {
+        boolean v1 = boolOption("v1");
+        OutputStream out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        if (signalId != null) {
+            out.write(v1 ? TrainSignalMessage.generateFrame(MessageType.HELLO, 0, signalId, null)
+                    : ("[" + signalId + "]!").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        byte currentState = SignalAspect.RED_ON.getStateByte();
+        byte[] buffer = new byte[TrainSignalMessage.MAX_FRAME_SIZE];
+        while (!mStopped) {
+            // Like the sketch, only check for a message every so often when idle.
+            int first;
+            try {
+                socket.setSoTimeout(1);
+                first = in.read();
+            } catch (SocketTimeoutException ex) {
+                sleep(intOption("idle-ms"));
+                continue;
+            }
+            if (first < 0) {
+                mServerDisconnects.incrementAndGet();
+                return;
+            }
+            socket.setSoTimeout(0);
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < doubleOption("disconnect")) {
+                mInjectedDisconnects.incrementAndGet();
+                return;
+            }
+
+            // Read the rest of the message.
+            boolean isFrame = (first & TrainSignalMessage.FRAME_MARKER) != 0;
+            int sequence = -1;
+            byte state;
+            boolean isPing;
+            if (isFrame) {
+                int length = in.readUnsignedByte();
+                in.readFully(buffer, 0, length);
+                MessageType type = MessageType.fromCode(buffer[0]);
+                sequence = ((buffer[1] & 0xFF) << 8) | (buffer[2] & 0xFF);
+                int payloadIndex = 4 + buffer[3];
+                isPing = type != MessageType.COMMAND;
+                state = payloadIndex < length ? buffer[payloadIndex] : 0;
+            } else {
+                state = (byte) first;
+                int next;
+                while ((next = in.read()) != TrainSignalMessage.MESSAGE_TERMINATING_CHAR) {
+                    if (next < 0) throw new EOFException();
+                }
+                isPing = state == TrainSignalMessage.ACK_MESSAGE[0];
+            }
+
+            if (isPing) {
+                mPings.incrementAndGet();
+            } else {
+                mCommands.incrementAndGet();
+                if (state != currentState) sleep(intOption("relay-ms"));
+                currentState = state;
+            }
+
+            if (random.nextDouble() < doubleOption("loss")) {
+                mDroppedAcks.incrementAndGet();
+            } else {
+                sleep(intOption("latency-ms"));
+                out.write(isFrame
+                        ? TrainSignalMessage.generateFrame(MessageType.ACK, sequence, null, null)
+                        : TrainSignalMessage.ACK_MESSAGE);
+                out.flush();
+            }
+
+            // The sketch waits for the signal to change after every message, pings included.
+            sleep(intOption("settle-ms"));
+        }
+    }
+
+    /** Send commands to random simulated signals through the HTTP API at a fixed rate. */
+    private void runApiLoad() {
+        HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newCachedThreadPool(mThreadFactory))
+                .build();
+        ExecutorService requests = Executors.newCachedThreadPool(mThreadFactory);
+        long intervalNanos = 1_000_000_000L / Math.max(1, intOption("rate"));
+        int signals = intOption("signals");
+        SignalAspect[] aspects = SignalAspect.values();
+
+        long nextNanos = System.nanoTime();
+        while (!mStopped) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            SignalAspect aspect = aspects[random.nextInt(aspects.length)];
+            String signalId = boolOption("no-hello") ? TrainSignalMessage.DEFAULT_SIGNAL_ID
+                    : mOptions.get("prefix") + random.nextInt(signals);
+            URI uri = URI.create(mOptions.get("http") + "?signal=" + signalId
+                    + "&color=" + aspect.getColor().name().charAt(0)
+                    + "&lamp=" + lampParam(aspect));
+
+            requests.execute(() -> {
+                long startNanos = System.nanoTime();
+                try {
+                    HttpResponse<String> response = client.send(
+                            HttpRequest.newBuilder(uri).GET().build(),
+                            HttpResponse.BodyHandlers.ofString());
+                    if (response.statusCode() != 200
+                            || response.body().contains("\"error\":true")) {
+                        mApiErrors.incrementAndGet();
+                    }
+                } catch (IOException ex) {
+                    mApiErrors.incrementAndGet();
+                } catch (InterruptedException ex) {
+                    return;
+                } finally {
+                    mApiRequests.incrementAndGet();
+                    mApiLatency.recordSince(startNanos);
+                }
+            });
+
+            nextNanos += intervalNanos;
+            long waitNanos = nextNanos - System.nanoTime();
+            if (waitNanos > 0) sleep(waitNanos / 1_000_000L);
+        }
+    }
+
+    /**
+     * @param aspect An aspect.
+     * @return The value of the API's lamp param for the aspect.
+     */
+    private static String lampParam(SignalAspect aspect) {
+        switch (aspect.getLampState()) {
+            case ON:
+                return "1";
+            case BLINK:
+                return "b";
+            case OFF:
+            default:
+                return "0";
+        }
+    }
+
+    /** @param ms How long to sleep in ms. Does nothing if 0 or less. */
+    private static void sleep(long ms) {
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(mOptions.get(name));
+    }
+
+    private double doubleOption(String name) {
+        return Double.parseDouble(mOptions.get(name));
+    }
+
+    private boolean boolOption(String name) {
+        return Boolean.parseBoolean(mOptions.get(name));
+    }
+
+    /**
+     * @param args Command line args in the form "--name value" or "--flag".
+     * @return The options with defaults filled in or null if the args are invalid.
+     */
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String[] option : OPTIONS) options.put(option[0], option[1]);
+
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) return null;
+            String name = args[i].substring(2);
+            if (!options.containsKey(name)) return null;
+
+            String defaultValue = options.get(name);
+            if (("false".equals(defaultValue) || "true".equals(defaultValue))
+                    && (i + 1 >= args.length || args[i + 1].startsWith("--"))) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                return null;
+            }
+        }
+
+        try {
+            for (String[] option : OPTIONS) {
+                String value = options.get(option[0]);
+                if (option[0].equals("loss") || option[0].equals("disconnect")) {
+                    Double.parseDouble(value);
+                } else if (option[1].matches("\\d+")) {
+                    Integer.parseInt(value);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return options;
+    }
+
+    /** Print the available options. */
+    private static void usage() {
+        System.err.println("Usage: SignalSimulator [options]");
+        for (String[] option : OPTIONS) {
+            System.err.println(String.format("  --%-14s %s (default: %s)", option[0], option[2],
+                    option[1].isEmpty() ? "none" : option[1]));
+        }
+    }
+}
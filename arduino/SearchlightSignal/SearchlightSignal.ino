@@ -16,10 +16,6 @@
 #include <string.h>
 
 // 32 bytes is plenty for signal messages (usually 1 byte).
-// TODO(Matt): If the signal is eventually named, that will be sent _from_ the
-//             signal and used to reference the device on the server. So this
-//             buffer can probably be even smaller. Name can possibly be
-//             provided via SD card.
 #define BUFFER_SIZE 32
 
 // Different states for a signal to be in
@@ -71,6 +67,11 @@ byte staticIp[] = {192, 168, 32, 100};
 char serverName[] = "mattjones.zone";
 int serverPort = 19100;
 
+// The ID this signal identifies itself to the server with (1-24 chars of
+// [A-Za-z0-9_.-]). Leave empty to be treated as the server's default signal.
+// TODO(Matt): Name can possibly be provided via SD card.
+char signalName[] = "";
+
 EthernetClient client;
 char readBuffer[BUFFER_SIZE];
 int readBufferPos;
@@ -133,6 +134,15 @@ boolean connectToServer() {
   //client.connect(serverIp, serverPort);
   client.connect(serverName, serverPort);
   if(!client.connected()) return false;
+
+  // Identify this signal to the server with a hello: "[name]!".
+  if (strlen(signalName) > 0) {
+    client.write('[');
+    client.write(signalName, strlen(signalName));
+    client.write(']');
+    client.write(MESSAGE_TERMINATING_CHAR);
+    client.flush();
+  }
   return true;
 }
 